@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import android.os.SystemClock;
+import android.os.UpdateEngine.UpdateStatusConstants;
+
+// update_engine reports a status and a 0..1 percent that starts over in every
+// status. This folds DOWNLOADING (writing the partitions from the staged
+// payload), VERIFYING and FINALIZING (postinstall) into one 0..100 progress,
+// weighted by how long each usually takes, and estimates the time left from
+// the smoothed rate of that overall progress.
+public class ApplyProgress {
+	static final float WEIGHT_WRITE = 0.6f;
+	static final float WEIGHT_VERIFY = 0.1f;
+	static final float WEIGHT_FINALIZE = 0.3f;
+	// rate samples closer together than this are merged.
+	static final long MIN_SAMPLE_MS = 1000;
+	// weight of the newest sample in the smoothed rate.
+	static final double RATE_SMOOTHING = 0.3;
+
+	private int mStatus = -1;
+	private float mOverall;
+	private long mSampleTime = -1;
+	private float mSampleOverall;
+	// overall fraction per millisecond, <= 0 while unknown.
+	private double mRate;
+
+	// returns true if the status differs from the previous call.
+	public synchronized boolean update(int status, float percent) {
+		boolean changed = status != mStatus;
+		mStatus = status;
+		float overall = overall(status, Math.max(0f, Math.min(1f, percent)));
+		if (overall < 0)
+			return changed;
+		long now = SystemClock.elapsedRealtime();
+		if (mSampleTime < 0 || overall < mSampleOverall) {
+			// first sample or a new apply run.
+			mSampleTime = now;
+			mSampleOverall = overall;
+			mRate = 0;
+		} else if (now - mSampleTime >= MIN_SAMPLE_MS) {
+			double rate = (overall - mSampleOverall) / (double) (now - mSampleTime);
+			mRate = (mRate <= 0) ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * mRate;
+			mSampleTime = now;
+			mSampleOverall = overall;
+		}
+		mOverall = overall;
+		return changed;
+	}
+
+	// -1 for statuses that are not part of applying a payload.
+	static float overall(int status, float percent) {
+		switch (status) {
+		case UpdateStatusConstants.DOWNLOADING:
+			return WEIGHT_WRITE * percent;
+		case UpdateStatusConstants.VERIFYING:
+			return WEIGHT_WRITE + WEIGHT_VERIFY * percent;
+		case UpdateStatusConstants.FINALIZING:
+			return WEIGHT_WRITE + WEIGHT_VERIFY + WEIGHT_FINALIZE * percent;
+		case UpdateStatusConstants.UPDATED_NEED_REBOOT:
+			return 1f;
+		default:
+			return -1f;
+		}
+	}
+
+	public synchronized int getStatus() {
+		return mStatus;
+	}
+
+	public synchronized int getPercent() {
+		return Math.round(mOverall * 100);
+	}
+
+	// seconds left, -1 if not known yet.
+	public synchronized long getEtaSeconds() {
+		if (mOverall >= 1f)
+			return 0;
+		if (mRate <= 0)
+			return -1;
+		return (long) ((1f - mOverall) / mRate / 1000);
+	}
+
+	public synchronized void reset() {
+		mStatus = -1;
+		mOverall = 0;
+		mSampleTime = -1;
+		mRate = 0;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import java.util.ArrayDeque;
+
+// A few read buffers shared by the metadata path (build.prop parsing,
+// connection draining), which runs on every check; saves a fresh allocation
+// per file on boards with little memory. Take one with acquire() and hand it
+// back with release() in a finally block.
+public class BufferPool {
+	static final int BUFFER_SIZE = 8192;
+	static final int MAX_POOLED = 4;
+
+	private static final ArrayDeque<byte[]> sPool = new ArrayDeque<byte[]>();
+
+	static byte[] acquire() {
+		synchronized (sPool) {
+			byte[] buffer = sPool.poll();
+			if (buffer != null)
+				return buffer;
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	static void release(byte[] buffer) {
+		synchronized (sPool) {
+			if (sPool.size() < MAX_POOLED)
+				sPool.push(buffer);
+		}
+	}
+}
@@ -17,89 +17,232 @@
 package com.fsl.android.ota;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-import android.content.Context;
-import android.util.Log;
-
+// Read-only key=value store for build.prop style files. The raw bytes are kept
+// (memory mapped for files) and only indexed on the first lookup; strings are
+// created for the values that are asked for, never for the whole file.
 public class BuildPropParser {
     private HashMap<String, String> propHM = null;
-    File tmpFile;
-    Context mContext;
-    
+    // raw file content, null if the properties came as a map.
+    private final ByteBuffer mData;
+    // per entry: key start, key end, value start, value end in mData.
+    private int[] mEntries;
+    private int mCount;
+    // distinct keys, mCount minus keys defined more than once.
+    private int mKeys;
+    // open addressing over the key hashes, entry index + 1, 0 is empty.
+    private int[] mTable;
+
     final String TAG = "OTA";
 
-    BuildPropParser(ByteArrayOutputStream out, Context context) {
-    	mContext = context;
-        propHM = new HashMap<String, String>();
-        setByteArrayStream(out);
+    BuildPropParser(InputStream in) throws IOException {
+        mData = ByteBuffer.wrap(readAll(in));
     }
 
-    BuildPropParser(File file, Context context) throws IOException {
-    	mContext = context;
-        propHM = new HashMap<String, String>();
-        setFile(file);
+    // properties that did not come from a build.prop file, e.g. manifest.json.
+    BuildPropParser(Map<String, String> props) {
+        mData = null;
+        propHM = new HashMap<String, String>(props);
     }
 
-    public HashMap<String, String> getPropMap()         { return propHM;};
-    public String getProp(String propname) { 
-    	if (propHM != null)
-    		return (String) propHM.get(propname); 
-    	else 
-    		return null;
+    BuildPropParser(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            // the mapping stays valid after the channel is closed.
+            mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
     }
 
-    private void setByteArrayStream(ByteArrayOutputStream out) {
-        try {
-        	File tmpDir = null;
-        	if (mContext != null)
-        		tmpDir = mContext.getFilesDir();
-        	Log.d(TAG, "tmpDir:"  + tmpDir.toString() +  "\n");
-            tmpFile = File.createTempFile("buildprop", "ss", tmpDir);
-            
-            tmpFile.deleteOnExit();
-            FileOutputStream o2 = new FileOutputStream(tmpFile);
-            out.writeTo(o2);
-            o2.close();
-            setFile(tmpFile);
-            tmpFile.delete();
-        } catch (IOException e) {
-            e.printStackTrace();
+    // every property as a map; materializes all of them, meant for dumps.
+    public synchronized HashMap<String, String> getPropMap() {
+        if (propHM == null) {
+            index();
+            propHM = new HashMap<String, String>();
+            for (int i = 0; i < mCount; i++)
+                propHM.put(string(mEntries[i * 4], mEntries[i * 4 + 1]),
+                        string(mEntries[i * 4 + 2], mEntries[i * 4 + 3]));
         }
+        return propHM;
     }
 
-    private void setFile(File file) throws IOException {
-        try {
-            FileReader reader = new FileReader(file);
-            BufferedReader in = new BufferedReader(reader);
-            String string;
-            while ((string = in.readLine()) != null) {
-                Scanner scan = new Scanner(string);
-                scan.useDelimiter("=");
-                try {
-                    propHM.put(scan.next(), scan.next());
-                } catch (NoSuchElementException e) {
-                    continue;
-                }
+    public String getProp(String propname) {
+        if (mData == null)
+            return propHM.get(propname);
+        int entry = find(propname);
+        return (entry < 0) ? null : string(mEntries[entry * 4 + 2], mEntries[entry * 4 + 3]);
+    }
+
+    // number of properties.
+    public int size() {
+        if (mData == null)
+            return propHM.size();
+        index();
+        return mKeys;
+    }
+
+    // keys whose value differs between this and other, including keys only
+    // one side has. Values are compared as bytes, nothing is decoded for keys
+    // that are equal.
+    public List<String> diff(BuildPropParser other) {
+        List<String> changed = new ArrayList<String>();
+        if (mData == null || other.mData == null) {
+            Map<String, String> a = getPropMap();
+            Map<String, String> b = other.getPropMap();
+            for (Map.Entry<String, String> e : a.entrySet()) {
+                if (!e.getValue().equals(b.get(e.getKey())))
+                    changed.add(e.getKey());
             }
-            in.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw e;
+            for (String key : b.keySet()) {
+                if (!a.containsKey(key))
+                    changed.add(key);
+            }
+            return changed;
+        }
+        index();
+        other.index();
+        for (int i = 0; i < mCount; i++) {
+            if (!isLast(i))
+                continue;
+            int j = other.find(mData, mEntries[i * 4], mEntries[i * 4 + 1]);
+            if (j < 0 || !other.rangeEquals(other.mEntries[j * 4 + 2], other.mEntries[j * 4 + 3],
+                    mData, mEntries[i * 4 + 2], mEntries[i * 4 + 3]))
+                changed.add(string(mEntries[i * 4], mEntries[i * 4 + 1]));
+        }
+        for (int j = 0; j < other.mCount; j++) {
+            if (other.isLast(j)
+                    && find(other.mData, other.mEntries[j * 4], other.mEntries[j * 4 + 1]) < 0)
+                changed.add(other.string(other.mEntries[j * 4], other.mEntries[j * 4 + 1]));
+        }
+        return changed;
+    }
+
+    // true if entry i is the definition a lookup of its key returns; a key
+    // defined twice is taken from the later line, as the old map did.
+    private boolean isLast(int i) {
+        return find(mData, mEntries[i * 4], mEntries[i * 4 + 1]) == i;
+    }
+
+    private int find(String key) {
+        index();
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return find(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    // entry whose key equals src[start, end), -1 if there is none.
+    private int find(ByteBuffer src, int start, int end) {
+        int mask = mTable.length - 1;
+        for (int slot = hash(src, start, end) & mask; mTable[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = mTable[slot] - 1;
+            if (rangeEquals(mEntries[entry * 4], mEntries[entry * 4 + 1], src, start, end))
+                return entry;
+        }
+        return -1;
+    }
+
+    private boolean rangeEquals(int start, int end, ByteBuffer src, int srcStart, int srcEnd) {
+        if (end - start != srcEnd - srcStart)
+            return false;
+        for (int i = 0; i < end - start; i++) {
+            if (mData.get(start + i) != src.get(srcStart + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int hash(ByteBuffer src, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + src.get(i);
+        return h ^ (h >>> 16);
+    }
+
+    // single pass over the raw bytes: split lines on '\n' and each line on
+    // its first '=', so values may contain '=' themselves.
+    private synchronized void index() {
+        if (mTable != null)
+            return;
+        mEntries = new int[64 * 4];
+        mCount = 0;
+        mKeys = 0;
+        int limit = mData.limit();
+        int lineStart = 0;
+        int eq = -1;
+        for (int i = 0; i <= limit; i++) {
+            byte b = (i < limit) ? mData.get(i) : (byte) '\n';
+            if (b == '=' && eq < 0)
+                eq = i;
+            else if (b == '\n') {
+                addLine(lineStart, i, eq);
+                lineStart = i + 1;
+                eq = -1;
+            }
+        }
+        int size = Integer.highestOneBit(Math.max(mCount, 8) * 2) * 2;
+        int[] table = new int[size];
+        for (int entry = 0; entry < mCount; entry++) {
+            int start = mEntries[entry * 4];
+            int end = mEntries[entry * 4 + 1];
+            int slot = hash(mData, start, end) & (size - 1);
+            while (table[slot] != 0 && !rangeEquals(mEntries[(table[slot] - 1) * 4],
+                    mEntries[(table[slot] - 1) * 4 + 1], mData, start, end))
+                slot = (slot + 1) & (size - 1);
+            // a later definition of the same key replaces the earlier one.
+            if (table[slot] == 0)
+                mKeys++;
+            table[slot] = entry + 1;
+        }
+        mTable = table;
+    }
+
+    private void addLine(int start, int end, int eq) {
+        if (end > start && mData.get(end - 1) == '\r')
+            end--;
+        while (start < end && (mData.get(start) == ' ' || mData.get(start) == '\t'))
+            start++;
+        // skip comments and lines without a key
+        if (eq <= start || eq >= end || mData.get(start) == '#')
+            return;
+        if (mCount * 4 == mEntries.length)
+            mEntries = Arrays.copyOf(mEntries, mEntries.length * 2);
+        mEntries[mCount * 4] = start;
+        mEntries[mCount * 4 + 1] = eq;
+        mEntries[mCount * 4 + 2] = eq + 1;
+        mEntries[mCount * 4 + 3] = end;
+        mCount++;
+    }
+
+    private String string(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = mData.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            BufferPool.release(buffer);
         }
     }
     
     public String getRelease() { 
-    	if (propHM != null) 
-               return propHM.get("ro.build.version.release");
-    	else 
-    		return null;
+        return getProp("ro.build.version.release");
     }
     public String getNumRelease()  {
-    	if (propHM != null) 
-    		return propHM.get("ro.build.version.incremental");
-    	else
-    		return null;
+        return getProp("ro.build.version.incremental");
     }
 
 
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import java.io.IOException;
+import java.net.URL;
+
+// The OTA server and its mirrors. Metadata goes through the conditional
+// request cache, sizes come from a HEAD.
+public class HttpPackageSource implements PackageSource {
+	private final OTAConnectionManager mConnections;
+	private final MetadataCache mMetadataCache;
+
+	HttpPackageSource(OTAConnectionManager connections, MetadataCache metadataCache) {
+		mConnections = connections;
+		mMetadataCache = metadataCache;
+	}
+
+	public MetadataCache.Response open(URL url) throws IOException {
+		return mMetadataCache.open(url);
+	}
+
+	public RemoteResourceInfo info(URL url) throws IOException {
+		return RemoteResourceInfo.head(mConnections, url);
+	}
+
+	public boolean isLocal() {
+		return false;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
+import android.util.Log;
+
+// OTA folder layout on a mounted USB stick or SD card, for sites without an
+// OTA server. Files are read where they are; update_engine gets a file:// URL
+// of the payload on the volume, nothing is copied into the staging directory.
+public class LocalPackageSource implements PackageSource {
+	static final String TAG = "OTA";
+
+	private final File mRoot;
+
+	LocalPackageSource(File root) {
+		mRoot = root;
+	}
+
+	// mounted removable volume carrying layoutPath, e.g. "/<product>/build.prop",
+	// or null if there is none.
+	static LocalPackageSource find(Context context, String layoutPath) {
+		StorageManager sm = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+		List<StorageVolume> volumes = sm.getStorageVolumes();
+		if (volumes == null)
+			return null;
+		for (StorageVolume volume : volumes) {
+			String state = volume.getState();
+			if (!volume.isRemovable() || !(Environment.MEDIA_MOUNTED.equals(state)
+					|| Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)))
+				continue;
+			File root = volume.getPathFile();
+			if (root != null && new File(root, layoutPath).isFile()) {
+				Log.d(TAG, "OTA package found on " + root);
+				return new LocalPackageSource(root);
+			}
+		}
+		return null;
+	}
+
+	public File getRoot() {
+		return mRoot;
+	}
+
+	// base the OTA URLs are rebased onto, see OTAServerConfig.rebase().
+	public URL getBase() throws MalformedURLException {
+		return new URL("file", "", -1, mRoot.getAbsolutePath() + "/");
+	}
+
+	public MetadataCache.Response open(URL url) throws IOException {
+		return new MetadataCache.Response(false, new FileInputStream(fileFor(url)));
+	}
+
+	public RemoteResourceInfo info(URL url) throws IOException {
+		return new RemoteResourceInfo(url, fileFor(url));
+	}
+
+	public boolean isLocal() {
+		return true;
+	}
+
+	private File fileFor(URL url) throws IOException {
+		if (!"file".equals(url.getProtocol()))
+			throw new FileNotFoundException(url + " is not on " + mRoot);
+		return new File(url.getPath());
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+// On-disk cache of small OTA metadata files (build.prop, payload_properties.txt)
+// keyed by URL. Requests are sent with If-None-Match / If-Modified-Since so an
+// unchanged file costs one round trip and no body. Bodies may come gzip
+// encoded; they are inflated while read and cached decoded. For optional
+// files a 404 is cached too, they are not asked for again until
+// forgetMissing().
+public class MetadataCache {
+	final String TAG = "OTA";
+
+	public static class Response {
+		// true if the server answered 304 and the body comes from the cache.
+		public final boolean notModified;
+		public final InputStream stream;
+
+		Response(boolean notModified, InputStream stream) {
+			this.notModified = notModified;
+			this.stream = stream;
+		}
+
+		public void close() throws IOException {
+			stream.close();
+		}
+	}
+
+	private final File mDir;
+	private final OTAConnectionManager mConnections;
+
+	MetadataCache(File dir, OTAConnectionManager connections) {
+		mDir = dir;
+		mConnections = connections;
+		mDir.mkdirs();
+	}
+
+	public Response open(URL url) throws IOException {
+		return open(url, false);
+	}
+
+	// rememberMissing: url is optional, a 404 is kept and answered from the
+	// cache without a request.
+	public Response open(URL url, boolean rememberMissing) throws IOException {
+		AtomicFile file = fileFor(url);
+		String etag = null;
+		String lastModified = null;
+		InputStream cached = openCached(file);
+		if (cached != null) {
+			// header lines were consumed by openCached, the stream is at the body.
+			CachedStream cs = (CachedStream) cached;
+			if (cs.missing) {
+				cached.close();
+				throw new FileNotFoundException(url + ": not on server (cached)");
+			}
+			etag = cs.etag;
+			lastModified = cs.lastModified;
+		}
+
+		HttpURLConnection con = mConnections.open(url);
+		// asking explicitly turns off the platform's transparent decoding, so
+		// the encoding is known and handled below.
+		con.setRequestProperty("Accept-Encoding", "gzip");
+		if (etag != null)
+			con.setRequestProperty("If-None-Match", etag);
+		if (lastModified != null)
+			con.setRequestProperty("If-Modified-Since", lastModified);
+
+		int code;
+		try {
+			code = con.getResponseCode();
+		} catch (IOException e) {
+			mConnections.abort(con);
+			if (cached != null)
+				cached.close();
+			throw e;
+		}
+		if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+			mConnections.release(con);
+			Log.d(TAG, url + " not modified, use cached copy");
+			return new Response(true, cached);
+		}
+		if (cached != null)
+			cached.close();
+		if (code != HttpURLConnection.HTTP_OK) {
+			mConnections.release(con);
+			// only a missing file is FileNotFoundException, callers tell an
+			// optional file that is not there from a server in trouble.
+			if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+				if (rememberMissing)
+					rememberMissing(file);
+				throw new FileNotFoundException(url + ": HTTP " + code);
+			}
+			throw new IOException(url + ": HTTP " + code);
+		}
+
+		FileOutputStream out = file.startWrite();
+		try {
+			writeHeader(out, con.getHeaderField("ETag"), con.getHeaderField("Last-Modified"));
+		} catch (IOException e) {
+			file.failWrite(out);
+			mConnections.abort(con);
+			throw e;
+		}
+		InputStream body = mConnections.body(con);
+		if ("gzip".equalsIgnoreCase(con.getHeaderField("Content-Encoding"))) {
+			try {
+				body = new GZIPInputStream(body);
+			} catch (IOException e) {
+				file.failWrite(out);
+				body.close();
+				throw e;
+			}
+		}
+		return new Response(false, new TeeStream(body, file, out));
+	}
+
+	// true if the last answer for url was 404 and it is not asked for again.
+	public boolean isMissing(URL url) {
+		InputStream cached = openCached(fileFor(url));
+		if (cached == null)
+			return false;
+		try {
+			cached.close();
+		} catch (IOException e) {
+			// nothing was written
+		}
+		return ((CachedStream) cached).missing;
+	}
+
+	// ask the server for url again on the next open(), e.g. a new release
+	// was published and may bring it. True if it was remembered as missing.
+	public boolean forgetMissing(URL url) {
+		if (!isMissing(url))
+			return false;
+		fileFor(url).delete();
+		return true;
+	}
+
+	private void rememberMissing(AtomicFile file) {
+		FileOutputStream out = null;
+		try {
+			out = file.startWrite();
+			out.write("Missing:1\n\n".getBytes(StandardCharsets.UTF_8));
+			file.finishWrite(out);
+		} catch (IOException e) {
+			if (out != null)
+				file.failWrite(out);
+		}
+	}
+
+	private AtomicFile fileFor(URL url) {
+		String key;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(url.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i]));
+			key = sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			key = Integer.toHexString(url.toString().hashCode());
+		}
+		return new AtomicFile(new File(mDir, key));
+	}
+
+	private static void writeHeader(OutputStream out, String etag, String lastModified)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		if (etag != null)
+			sb.append("ETag:").append(etag).append('\n');
+		if (lastModified != null)
+			sb.append("Last-Modified:").append(lastModified).append('\n');
+		sb.append('\n');
+		out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private InputStream openCached(AtomicFile file) {
+		try {
+			return new CachedStream(new BufferedInputStream(file.openRead()));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// cache file: "Name:value" validator lines, an empty line, then the body.
+	// "Missing:1" marks a url that answered 404, there is no body then.
+	private static class CachedStream extends FilterInputStream {
+		String etag;
+		String lastModified;
+		boolean missing;
+
+		CachedStream(InputStream in) throws IOException {
+			super(in);
+			String line;
+			while ((line = readLine()) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon <= 0)
+					continue;
+				String name = line.substring(0, colon);
+				if (name.equals("ETag"))
+					etag = line.substring(colon + 1);
+				else if (name.equals("Last-Modified"))
+					lastModified = line.substring(colon + 1);
+				else if (name.equals("Missing"))
+					missing = true;
+			}
+			if (line == null) {
+				in.close();
+				throw new EOFException("truncated metadata cache file");
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n')
+				sb.append((char) c);
+			return (c == -1 && sb.length() == 0) ? null : sb.toString();
+		}
+	}
+
+	// copies the body into the cache file while the caller reads it; the cache
+	// entry is only committed if the body was read to the end.
+	private static class TeeStream extends FilterInputStream {
+		private final AtomicFile mFile;
+		private FileOutputStream mOut;
+		private boolean mComplete = false;
+
+		TeeStream(InputStream in, AtomicFile file, FileOutputStream out) {
+			super(in);
+			mFile = file;
+			mOut = out;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = in.read();
+			if (c == -1)
+				mComplete = true;
+			else if (mOut != null)
+				mOut.write(c);
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n == -1)
+				mComplete = true;
+			else if (mOut != null)
+				mOut.write(b, off, n);
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				if (mOut != null) {
+					if (mComplete)
+						mFile.finishWrite(mOut);
+					else
+						mFile.failWrite(mOut);
+					mOut = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Measures every OTA mirror with a small ranged GET of the same file: time to
+// the response headers is the round trip, the rest of the sample gives the
+// throughput. Mirrors that fail are ranked last. Probes run on the caller's
+// executor and connections, so cancelling the caller stops them too.
+public class MirrorProbe {
+	static final String TAG = "OTA";
+
+	static final int SAMPLE_BYTES = 256 * 1024;
+	static final int PROBE_TIMEOUT_MS = 5000;
+
+	public static class Result {
+		public final URL base;
+		// -1 if the mirror did not answer.
+		public long rttMs = -1;
+		public long bytesPerSecond = -1;
+		// estimated time to fetch the sample, what mirrors are ranked by.
+		public long scoreMs = Long.MAX_VALUE;
+
+		Result(URL base) {
+			this.base = base;
+		}
+
+		public boolean ok() {
+			return rttMs >= 0;
+		}
+	}
+
+	// probe path on every base in parallel and return them best first.
+	static List<Result> rank(final OTAConnectionManager connections, Executor executor,
+			List<URL> bases, final String path) {
+		final List<Result> results = new ArrayList<Result>();
+		List<CompletableFuture<Void>> probes = new ArrayList<CompletableFuture<Void>>();
+		for (URL base : bases) {
+			final Result result = new Result(base);
+			results.add(result);
+			probes.add(CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+					measure(connections, result, path);
+				}
+			}, executor));
+		}
+		try {
+			CompletableFuture.allOf(probes.toArray(new CompletableFuture[probes.size()])).join();
+		} catch (CompletionException e) {
+			Log.w(TAG, "mirror probe failed: " + e.getCause());
+		}
+		List<Result> ranked = new ArrayList<Result>(results);
+		Collections.sort(ranked, new Comparator<Result>() {
+			public int compare(Result a, Result b) {
+				return Long.compare(a.scoreMs, b.scoreMs);
+			}
+		});
+		for (Result r : ranked) {
+			Log.d(TAG, "mirror " + r.base + (r.ok() ? ": rtt " + r.rttMs + " ms, "
+					+ (r.bytesPerSecond / 1024) + " KB/s" : ": not reachable"));
+		}
+		return ranked;
+	}
+
+	private static void measure(OTAConnectionManager connections, Result result, String path) {
+		HttpURLConnection con = null;
+		try {
+			URL url = new URL(result.base, path);
+			long begin = SystemClock.elapsedRealtime();
+			con = connections.open(url);
+			con.setConnectTimeout(PROBE_TIMEOUT_MS);
+			con.setReadTimeout(PROBE_TIMEOUT_MS);
+			con.setRequestProperty("Range", "bytes=0-" + (SAMPLE_BYTES - 1));
+			int code = con.getResponseCode();
+			long rtt = SystemClock.elapsedRealtime() - begin;
+			if (code != HttpURLConnection.HTTP_PARTIAL && code != HttpURLConnection.HTTP_OK) {
+				connections.release(con);
+				return;
+			}
+			InputStream in = con.getInputStream();
+			byte[] buffer = new byte[16 * 1024];
+			long received = 0;
+			int n;
+			while (received < SAMPLE_BYTES && (n = in.read(buffer)) > 0)
+				received += n;
+			long total = SystemClock.elapsedRealtime() - begin;
+			// a server ignoring Range would send the whole payload, stop here.
+			connections.abort(con);
+			result.rttMs = rtt;
+			result.bytesPerSecond = received * 1000 / Math.max(1, total - rtt);
+			result.scoreMs = rtt + SAMPLE_BYTES * 1000L / Math.max(1, result.bytesPerSecond);
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "bad mirror " + result.base + ": " + e);
+		} catch (IOException e) {
+			if (con != null)
+				connections.abort(con);
+		}
+	}
+}
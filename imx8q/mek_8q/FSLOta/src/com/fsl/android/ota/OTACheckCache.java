@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Result of the last version check, kept so the UI can show it at once and
+// the background checker knows how far to back off.
+public class OTACheckCache {
+	static final String PREFS_NAME = "ota_check";
+	static final String KEY_TIME = "time";
+	static final String KEY_ERROR = "error";
+	static final String KEY_OTA_TYPE = "ota_type";
+	static final String KEY_BUILD_ID = "build_id";
+	static final String KEY_DESCRIPTION = "description";
+	static final String KEY_FAILURES = "failures";
+
+	private final SharedPreferences mPrefs;
+
+	OTACheckCache(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	public void saveResult(int error, OTAServerManager.OtaTypeSelect type, BuildPropParser parser) {
+		SharedPreferences.Editor editor = mPrefs.edit();
+		editor.putLong(KEY_TIME, System.currentTimeMillis());
+		editor.putInt(KEY_ERROR, error);
+		editor.putString(KEY_OTA_TYPE, type.name());
+		if (parser != null) {
+			editor.putString(KEY_BUILD_ID, parser.getProp("ro.build.id"));
+			editor.putString(KEY_DESCRIPTION, parser.getProp("ro.build.description"));
+		} else {
+			editor.remove(KEY_BUILD_ID);
+			editor.remove(KEY_DESCRIPTION);
+		}
+		switch (error) {
+			case OTAServerManager.OTAStateChangeListener.NO_ERROR:
+				editor.putInt(KEY_FAILURES, 0);
+				break;
+			case OTAServerManager.OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER:
+			case OTAServerManager.OTAStateChangeListener.ERROR_NETWORK_ERROR:
+			case OTAServerManager.OTAStateChangeListener.ERROR_WIFI_NOT_AVALIBLE:
+				editor.putInt(KEY_FAILURES, mPrefs.getInt(KEY_FAILURES, 0) + 1);
+				break;
+			default:
+				break;
+		}
+		editor.apply();
+	}
+
+	// wall clock time of the last check, 0 if there never was one.
+	public long getTime() {
+		return mPrefs.getLong(KEY_TIME, 0);
+	}
+
+	public int getError() {
+		return mPrefs.getInt(KEY_ERROR, OTAServerManager.OTAStateChangeListener.NO_ERROR);
+	}
+
+	public OTAServerManager.OtaTypeSelect getOtaType() {
+		try {
+			return OTAServerManager.OtaTypeSelect.valueOf(
+					mPrefs.getString(KEY_OTA_TYPE, OTAServerManager.OtaTypeSelect.NONE.name()));
+		} catch (IllegalArgumentException e) {
+			return OTAServerManager.OtaTypeSelect.NONE;
+		}
+	}
+
+	public String getBuildId() {
+		return mPrefs.getString(KEY_BUILD_ID, null);
+	}
+
+	public String getDescription() {
+		return mPrefs.getString(KEY_DESCRIPTION, null);
+	}
+
+	// consecutive failed checks, drives the backoff of the scheduler.
+	public int getFailures() {
+		return mPrefs.getInt(KEY_FAILURES, 0);
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.net.MalformedURLException;
+import java.util.Random;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+// Headless version check. Runs OTAServerManager.startCheckingVersion on a
+// schedule, stores the result in OTACheckCache, hands a found update to
+// OTAUpdateService on unattended devices and plans the next run with
+// random jitter, so a fleet does not hit the server at the same minute, and
+// exponential backoff while the server cannot be reached.
+public class OTACheckJobService extends JobService {
+	static final String TAG = "OTA";
+	static final int JOB_ID = 0x07a;
+	static final long MINUTE_MS = 60 * 1000;
+	// first retry after a failed check, doubled on each further failure.
+	static final long BACKOFF_BASE_MS = 15 * MINUTE_MS;
+
+	private static final Random sRandom = new Random();
+
+	private OTAServerManager mManager;
+	// the system stopped the job; the aborted check is not a server failure.
+	private volatile boolean mStopped = false;
+
+	// schedule the next check unless one is already pending.
+	public static void ensureScheduled(Context context) {
+		JobScheduler js = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+		if (js.getPendingJob(JOB_ID) == null)
+			scheduleNext(context);
+	}
+
+	public static void scheduleNext(Context context) {
+		OTACheckCache cache = new OTACheckCache(context);
+		long interval = OTAServerConfig.DEFAULT_CHECK_INTERVAL_MINUTES * MINUTE_MS;
+		try {
+			interval = new OTAServerConfig(Build.PRODUCT).getCheckIntervalMinutes() * MINUTE_MS;
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "wrong OTA server configure, use default check interval");
+		}
+		long delay = nextDelay(interval, cache.getFailures());
+		Log.d(TAG, "next OTA check in " + (delay / MINUTE_MS) + " min, "
+				+ cache.getFailures() + " failures so far");
+		JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, OTACheckJobService.class))
+				.setMinimumLatency(delay)
+				.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+				.setPersisted(true)
+				.build();
+		JobScheduler js = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+		js.schedule(job);
+	}
+
+	// ota.conf asks to install updates without an operator.
+	static boolean isUnattended() {
+		try {
+			return new OTAServerConfig(Build.PRODUCT).isUnattended();
+		} catch (MalformedURLException e) {
+			return false;
+		}
+	}
+
+	// interval +-25% on success; after failures min(base * 2^n, interval),
+	// with the delay drawn from its upper half.
+	static long nextDelay(long interval, int failures) {
+		if (failures <= 0) {
+			long spread = interval / 2;
+			return interval - spread / 2 + (long) (sRandom.nextDouble() * spread);
+		}
+		long backoff = BACKOFF_BASE_MS << Math.min(failures - 1, 16);
+		if (backoff <= 0 || backoff > interval)
+			backoff = interval;
+		return backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+	}
+
+	@Override
+	public boolean onStartJob(final JobParameters params) {
+		Log.d(TAG, "background OTA check");
+		mStopped = false;
+		final OTACheckCache cache = new OTACheckCache(this);
+		try {
+			mManager = new OTAServerManager(this);
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "wrong OTA server configure: " + e);
+			return false;
+		}
+		mManager.setmListener(new OTAServerManager.OTAStateChangeListener() {
+			public void onStateOrProgress(int message, int error, Object info) {
+				if (message != STATE_IN_CHECKED || mStopped)
+					return;
+				if (error == NO_ERROR) {
+					OTAServerManager.OtaTypeSelect type = mManager.compareLocalVersionToServer();
+					cache.saveResult(error, type, (BuildPropParser) info);
+					if (type != OTAServerManager.OtaTypeSelect.NONE && isUnattended()
+							&& !mManager.isRebootPending())
+						OTAUpdateService.start(OTACheckJobService.this);
+				} else {
+					Log.w(TAG, "background OTA check failed: " + error);
+					cache.saveResult(error, OTAServerManager.OtaTypeSelect.NONE, null);
+				}
+				jobFinished(params, false);
+				scheduleNext(OTACheckJobService.this);
+				mManager.release();
+			}
+		});
+		// learn whether an applied update still waits for the reboot.
+		mManager.bindUpdateEngine();
+		mManager.submitCheckingVersion();
+		return true;
+	}
+
+	@Override
+	public boolean onStopJob(JobParameters params) {
+		mStopped = true;
+		if (mManager != null)
+			mManager.release();
+		// the check never finished, let the scheduler run it again.
+		return true;
+	}
+}
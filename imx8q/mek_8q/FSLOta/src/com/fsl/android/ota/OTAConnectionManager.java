@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+
+import android.util.Log;
+
+// Single place every OTA request is opened from. Redirect and timeout policy
+// is applied per connection instead of through the JVM wide
+// HttpURLConnection.setFollowRedirects(), and responses are released in a way
+// that lets the platform keep the socket alive for the next request to the
+// same server. Safe to use from several threads.
+public class OTAConnectionManager {
+	final String TAG = "OTA";
+
+	static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+	static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+	// left over bodies up to this size are drained so the socket can be reused,
+	// anything bigger is cheaper to drop.
+	static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	private volatile int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+	private volatile int mReadTimeout = DEFAULT_READ_TIMEOUT_MS;
+	private volatile boolean mFollowRedirects = false;
+	private final HashSet<HttpURLConnection> mActive = new HashSet<HttpURLConnection>();
+
+	public void setTimeouts(int connectMs, int readMs) {
+		mConnectTimeout = connectMs;
+		mReadTimeout = readMs;
+	}
+
+	public void setFollowRedirects(boolean follow) {
+		mFollowRedirects = follow;
+	}
+
+	public HttpURLConnection open(URL url, String method) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setInstanceFollowRedirects(mFollowRedirects);
+		con.setConnectTimeout(mConnectTimeout);
+		con.setReadTimeout(mReadTimeout);
+		con.setUseCaches(false);
+		con.setRequestMethod(method);
+		con.setRequestProperty("Connection", "keep-alive");
+		synchronized (mActive) {
+			mActive.add(con);
+		}
+		return con;
+	}
+
+	public HttpURLConnection open(URL url) throws IOException {
+		return open(url, "GET");
+	}
+
+	// response body of a successful request. Closing it drains what is left
+	// so the connection goes back to the keep-alive pool.
+	public InputStream body(final HttpURLConnection con) throws IOException {
+		return new FilterInputStream(con.getInputStream()) {
+			private boolean mClosed = false;
+
+			@Override
+			public void close() throws IOException {
+				if (mClosed)
+					return;
+				mClosed = true;
+				finish(con, in);
+			}
+		};
+	}
+
+	// done with a response whose body is not wanted (HEAD, 304, errors).
+	// Do not call disconnect() for this, it closes the socket.
+	public void release(HttpURLConnection con) {
+		InputStream in = null;
+		try {
+			in = con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+					? con.getErrorStream() : con.getInputStream();
+		} catch (IOException e) {
+			abort(con);
+			return;
+		}
+		finish(con, in);
+	}
+
+	private void finish(HttpURLConnection con, InputStream in) {
+		synchronized (mActive) {
+			mActive.remove(con);
+		}
+		if (in == null)
+			return;
+		byte[] buffer = BufferPool.acquire();
+		try {
+			int drained = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				drained += n;
+				if (drained > MAX_DRAIN_BYTES) {
+					con.disconnect();
+					return;
+				}
+			}
+		} catch (IOException e) {
+			con.disconnect();
+		} finally {
+			BufferPool.release(buffer);
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	// drop the connection without reusing it, e.g. a transfer was cancelled.
+	public void abort(HttpURLConnection con) {
+		synchronized (mActive) {
+			mActive.remove(con);
+		}
+		con.disconnect();
+	}
+
+	// tear down every open connection, which unblocks threads sitting in read().
+	public void abortAll() {
+		HttpURLConnection[] active;
+		synchronized (mActive) {
+			active = mActive.toArray(new HttpURLConnection[mActive.size()]);
+			mActive.clear();
+		}
+		if (active.length > 0)
+			Log.d(TAG, "abort " + active.length + " open connections");
+		for (HttpURLConnection con : active)
+			con.disconnect();
+	}
+}
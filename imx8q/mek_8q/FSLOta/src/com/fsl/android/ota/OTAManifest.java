@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+// manifest.json in the OTA folder: everything a check and the header phase
+// need in one small file, instead of build.prop, build_diff.prop and the
+// payload_properties files fetched one by one. Servers without it keep
+// working through the per-file layout.
+//
+// {
+//   "full": {
+//     "build": { "ro.build.fingerprint": "...", "ro.build.date.utc": "...", ... },
+//     "payload_properties": [ "FILE_HASH=...", "FILE_SIZE=...", ... ],
+//     "size": 123456789
+//   },
+//   "diff": {
+//     "base_fingerprint": "...",
+//     "build": { ... }, "payload_properties": [ ... ], "size": 1234567
+//   },
+//   "rollout": { "ota.rollout.percentage": "10", ... }
+// }
+//
+// "diff" and "rollout" are optional, as is "size".
+public class OTAManifest {
+	public static class Entry {
+		// target build.prop; for the diff entry it also carries
+		// OTAServerManager.DIFF_BASE_FINGERPRINT.
+		public BuildPropParser build;
+		// lines of payload_properties.txt, null if not in the manifest.
+		public String[] payloadProperties;
+		// payload size in bytes, -1 if not in the manifest.
+		public long size = -1;
+	}
+
+	private Entry mFull;
+	private Entry mDiff;
+	private BuildPropParser mRollout;
+
+	public Entry getFull() {
+		return mFull;
+	}
+
+	// null if the release has no incremental payload.
+	public Entry getDiff() {
+		return mDiff;
+	}
+
+	// rollout keys for RolloutGate, null if there are none.
+	public BuildPropParser getRollout() {
+		return mRollout;
+	}
+
+	static OTAManifest parse(InputStream in) throws IOException {
+		OTAManifest manifest = new OTAManifest();
+		JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("full"))
+					manifest.mFull = readEntry(reader);
+				else if (name.equals("diff"))
+					manifest.mDiff = readEntry(reader);
+				else if (name.equals("rollout"))
+					manifest.mRollout = new BuildPropParser(readStrings(reader));
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+		} catch (IllegalStateException | NumberFormatException e) {
+			// wrong value types, e.g. a number where an object belongs.
+			throw new IOException("malformed manifest: " + e.getMessage());
+		}
+		if (manifest.mFull == null || manifest.mFull.build == null)
+			throw new IOException("manifest has no full build");
+		return manifest;
+	}
+
+	private static Entry readEntry(JsonReader reader) throws IOException {
+		Entry entry = new Entry();
+		Map<String, String> build = null;
+		String base = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("build")) {
+				build = readStrings(reader);
+			} else if (name.equals("base_fingerprint")) {
+				base = reader.nextString();
+			} else if (name.equals("payload_properties")) {
+				List<String> lines = new ArrayList<String>();
+				reader.beginArray();
+				while (reader.hasNext())
+					lines.add(reader.nextString());
+				reader.endArray();
+				entry.payloadProperties = lines.toArray(new String[lines.size()]);
+			} else if (name.equals("size")) {
+				entry.size = reader.nextLong();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (build != null) {
+			if (base != null)
+				build.put(OTAServerManager.DIFF_BASE_FINGERPRINT, base);
+			entry.build = new BuildPropParser(build);
+		}
+		return entry;
+	}
+
+	// flat object of string values; numbers and booleans are kept as text.
+	private static Map<String, String> readStrings(JsonReader reader) throws IOException {
+		Map<String, String> map = new HashMap<String, String>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			JsonToken token = reader.peek();
+			if (token == JsonToken.NULL)
+				reader.nextNull();
+			else if (token == JsonToken.BOOLEAN)
+				map.put(name, String.valueOf(reader.nextBoolean()));
+			else
+				map.put(name, reader.nextString());
+		}
+		reader.endObject();
+		return map;
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+// Where OTA time goes: wall time and network round trips per phase, retries,
+// download throughput over time and how often each error code was seen, both
+// our own OTAStateChangeListener codes and update_engine's ErrorCodeConstants.
+// One instance per process, shared by every OTAServerManager. The snapshot
+// is written to FILE_NAME in the app's files dir after every phase and error,
+// and printed by "dumpsys activity" through OtaAppActivity.dump(). A new
+// process loads the file and keeps adding to it, so counters and histograms
+// cover every run since the app data was cleared.
+public class OTAMetrics {
+	final String TAG = "OTA";
+
+	public static final String PHASE_CHECK = "check";
+	public static final String PHASE_SIZE = "size";
+	public static final String PHASE_HEADER = "header";
+	public static final String PHASE_DOWNLOAD = "download";
+	public static final String PHASE_VERIFY = "verify";
+	public static final String PHASE_APPLY = "apply";
+	public static final String PHASE_REBOOT_WAIT = "reboot_wait";
+
+	static final String FILE_NAME = "ota_metrics.json";
+	// throughput samples kept, about one per second of download.
+	static final int MAX_SAMPLES = 300;
+
+	private static OTAMetrics sInstance;
+
+	private static class Phase {
+		long start = -1;
+		long duration;
+		int requests;
+		long requestTime;
+		int retries;
+		int runs;
+		// the saved file had it running: an earlier process ended inside it,
+		// e.g. recovery rebooted during apply. Kept until the phase runs again.
+		boolean interrupted;
+	}
+
+	private final AtomicFile mFile;
+	private final LinkedHashMap<String, Phase> mPhases = new LinkedHashMap<String, Phase>();
+	private final TreeMap<Integer, Integer> mListenerErrors = new TreeMap<Integer, Integer>();
+	private final TreeMap<Integer, Integer> mUpdateEngineErrors = new TreeMap<Integer, Integer>();
+	// ring buffer of (elapsed realtime, bytes per second) pairs.
+	private final long[] mSampleTime = new long[MAX_SAMPLES];
+	private final long[] mSampleRate = new long[MAX_SAMPLES];
+	private int mSampleCount;
+	private int mSampleNext;
+
+	static synchronized OTAMetrics get(Context context) {
+		if (sInstance == null)
+			sInstance = new OTAMetrics(new File(context.getFilesDir(), FILE_NAME));
+		return sInstance;
+	}
+
+	OTAMetrics(File file) {
+		mFile = (file != null) ? new AtomicFile(file) : null;
+		load();
+	}
+
+	private Phase phase(String name) {
+		Phase p = mPhases.get(name);
+		if (p == null) {
+			p = new Phase();
+			mPhases.put(name, p);
+		}
+		return p;
+	}
+
+	public synchronized void beginPhase(String name) {
+		Phase p = phase(name);
+		p.start = SystemClock.elapsedRealtime();
+		p.duration = 0;
+		p.requests = 0;
+		p.requestTime = 0;
+		p.retries = 0;
+		p.runs++;
+		p.interrupted = false;
+		if (name.equals(PHASE_DOWNLOAD)) {
+			mSampleCount = 0;
+			mSampleNext = 0;
+		}
+	}
+
+	public synchronized long endPhase(String name) {
+		Phase p = phase(name);
+		if (p.start < 0)
+			return 0;
+		p.duration = SystemClock.elapsedRealtime() - p.start;
+		p.start = -1;
+		Log.d(TAG, "phase " + name + ": " + p.duration + " ms, " + p.requests
+				+ " round trips (" + p.requestTime + " ms on the wire), " + p.retries + " retries");
+		save();
+		return p.duration;
+	}
+
+	public synchronized boolean inPhase(String name) {
+		Phase p = mPhases.get(name);
+		return p != null && p.start >= 0;
+	}
+
+	// one request/response exchange made on behalf of the phase.
+	public synchronized void recordRequest(String name, long elapsedMs) {
+		Phase p = phase(name);
+		p.requests++;
+		p.requestTime += elapsedMs;
+	}
+
+	public synchronized void recordRetries(String name, int retries) {
+		phase(name).retries += retries;
+	}
+
+	public synchronized void recordThroughput(long bytesPerSecond) {
+		mSampleTime[mSampleNext] = SystemClock.elapsedRealtime();
+		mSampleRate[mSampleNext] = bytesPerSecond;
+		mSampleNext = (mSampleNext + 1) % MAX_SAMPLES;
+		if (mSampleCount < MAX_SAMPLES)
+			mSampleCount++;
+	}
+
+	// an OTAStateChangeListener.ERROR_* reported to the listener.
+	public synchronized void recordError(int error) {
+		count(mListenerErrors, error);
+		save();
+	}
+
+	// an UpdateEngine.ErrorCodeConstants value other than SUCCESS.
+	public synchronized void recordUpdateEngineError(int errorCode) {
+		count(mUpdateEngineErrors, errorCode);
+		save();
+	}
+
+	private static void count(TreeMap<Integer, Integer> histogram, int code) {
+		Integer n = histogram.get(code);
+		histogram.put(code, (n == null) ? 1 : n + 1);
+	}
+
+	public synchronized String dump() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Phase> e : mPhases.entrySet()) {
+			Phase p = e.getValue();
+			sb.append(e.getKey()).append(": ").append(p.duration).append(" ms, ")
+					.append(p.requests).append(" round trips, ")
+					.append(p.requestTime).append(" ms on the wire, ")
+					.append(p.retries).append(" retries, ")
+					.append(p.runs).append(" runs");
+			if (p.start >= 0)
+				sb.append(" (running)");
+			else if (p.interrupted)
+				sb.append(" (interrupted)");
+			sb.append('\n');
+		}
+		if (mSampleCount > 0) {
+			long min = Long.MAX_VALUE;
+			long max = 0;
+			long sum = 0;
+			for (int i = 0; i < mSampleCount; i++) {
+				min = Math.min(min, mSampleRate[i]);
+				max = Math.max(max, mSampleRate[i]);
+				sum += mSampleRate[i];
+			}
+			sb.append("throughput: ").append(mSampleCount).append(" samples, min ")
+					.append(min).append(" avg ").append(sum / mSampleCount)
+					.append(" max ").append(max).append(" bytes/s\n");
+		}
+		sb.append("listener errors: ").append(mListenerErrors).append('\n');
+		sb.append("update_engine errors: ").append(mUpdateEngineErrors).append('\n');
+		return sb.toString();
+	}
+
+	public void dump(String prefix, PrintWriter pw) {
+		for (String line : dump().split("\n"))
+			pw.append(prefix).append(line).append('\n');
+	}
+
+	public synchronized void writeJson(JsonWriter json) throws IOException {
+		json.beginObject();
+		json.name("phases").beginObject();
+		for (Map.Entry<String, Phase> e : mPhases.entrySet()) {
+			Phase p = e.getValue();
+			json.name(e.getKey()).beginObject();
+			json.name("duration_ms").value(p.duration);
+			json.name("requests").value(p.requests);
+			json.name("request_ms").value(p.requestTime);
+			json.name("retries").value(p.retries);
+			json.name("runs").value(p.runs);
+			json.name("running").value(p.start >= 0 || p.interrupted);
+			json.endObject();
+		}
+		json.endObject();
+		json.name("throughput").beginArray();
+		int first = (mSampleCount < MAX_SAMPLES) ? 0 : mSampleNext;
+		long base = (mSampleCount > 0) ? mSampleTime[first] : 0;
+		for (int i = 0; i < mSampleCount; i++) {
+			int at = (first + i) % MAX_SAMPLES;
+			json.beginArray().value(mSampleTime[at] - base).value(mSampleRate[at]).endArray();
+		}
+		json.endArray();
+		writeHistogram(json, "listener_errors", mListenerErrors);
+		writeHistogram(json, "update_engine_errors", mUpdateEngineErrors);
+		json.endObject();
+	}
+
+	private static void writeHistogram(JsonWriter json, String name, TreeMap<Integer, Integer> histogram)
+			throws IOException {
+		json.name(name).beginObject();
+		for (Map.Entry<Integer, Integer> e : histogram.entrySet())
+			json.name(String.valueOf(e.getKey())).value(e.getValue());
+		json.endObject();
+	}
+
+	// what earlier processes saved; a missing or broken file starts empty.
+	private void load() {
+		if (mFile == null)
+			return;
+		JsonReader json = null;
+		try {
+			FileInputStream in = mFile.openRead();
+			json = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			readJson(json);
+		} catch (FileNotFoundException e) {
+			// first run
+		} catch (IOException | IllegalStateException | NumberFormatException e) {
+			Log.w(TAG, "cannot load OTA metrics, start over: " + e);
+			mPhases.clear();
+			mListenerErrors.clear();
+			mUpdateEngineErrors.clear();
+			mSampleCount = 0;
+			mSampleNext = 0;
+		} finally {
+			if (json != null) {
+				try {
+					json.close();
+				} catch (IOException e) {
+					// read only
+				}
+			}
+		}
+	}
+
+	// the format writeJson() produces. Sample times stay relative to the
+	// first sample, they only matter within one download.
+	private void readJson(JsonReader json) throws IOException {
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			if (name.equals("phases")) {
+				json.beginObject();
+				while (json.hasNext()) {
+					Phase p = phase(json.nextName());
+					json.beginObject();
+					while (json.hasNext()) {
+						String field = json.nextName();
+						if (field.equals("duration_ms"))
+							p.duration = json.nextLong();
+						else if (field.equals("requests"))
+							p.requests = json.nextInt();
+						else if (field.equals("request_ms"))
+							p.requestTime = json.nextLong();
+						else if (field.equals("retries"))
+							p.retries = json.nextInt();
+						else if (field.equals("runs"))
+							p.runs = json.nextInt();
+						else if (field.equals("running"))
+							p.interrupted = json.nextBoolean();
+						else
+							json.skipValue();
+					}
+					json.endObject();
+				}
+				json.endObject();
+			} else if (name.equals("throughput")) {
+				json.beginArray();
+				while (json.hasNext()) {
+					json.beginArray();
+					long time = json.nextLong();
+					long rate = json.nextLong();
+					json.endArray();
+					if (mSampleCount < MAX_SAMPLES) {
+						mSampleTime[mSampleCount] = time;
+						mSampleRate[mSampleCount] = rate;
+						mSampleCount++;
+					}
+				}
+				json.endArray();
+				mSampleNext = mSampleCount % MAX_SAMPLES;
+			} else if (name.equals("listener_errors")) {
+				readHistogram(json, mListenerErrors);
+			} else if (name.equals("update_engine_errors")) {
+				readHistogram(json, mUpdateEngineErrors);
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+	}
+
+	private static void readHistogram(JsonReader json, TreeMap<Integer, Integer> histogram)
+			throws IOException {
+		json.beginObject();
+		while (json.hasNext()) {
+			int code = Integer.parseInt(json.nextName());
+			histogram.put(code, json.nextInt());
+		}
+		json.endObject();
+	}
+
+	private void save() {
+		if (mFile == null)
+			return;
+		FileOutputStream out = null;
+		try {
+			out = mFile.startWrite();
+			JsonWriter json = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			json.setIndent("  ");
+			writeJson(json);
+			json.flush();
+			mFile.finishWrite(out);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot save OTA metrics: " + e);
+			if (out != null)
+				mFile.failWrite(out);
+		}
+	}
+}
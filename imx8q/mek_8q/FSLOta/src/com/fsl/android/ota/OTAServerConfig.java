@@ -23,9 +23,14 @@ import java.net.URL;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import android.util.Log;
 import android.os.Build;
+import android.os.SystemClock;
+import android.content.Context;
 
 // TODO: get the configure from a configure file.
 public class OTAServerConfig {
@@ -33,9 +38,13 @@ public class OTAServerConfig {
 	final String default_serveraddr = "127.0.0.1";
 	final String default_protocol = "http";
 	final int default_port = 8080;
+	// update_engine can only read payloads from its own package directory.
+	final String default_staging_dir = "/data/ota_package";
 	URL updatePackageURL;
 	URL buildpropURL;
 	URL diffbuildpropURL;
+	URL rolloutURL;
+	URL manifestURL;
 	URL payloadPropertiesURL;
 	URL payloadURL;
 	URL diffPayloadPropertiesURL;
@@ -48,13 +57,258 @@ public class OTAServerConfig {
 	final String server_ip_config = "server";
 	final String port_config_str = "port";
 	final String android_nickname = "ota_folder_suffix";
+	final String download_connections_config = "download_connections";
+	final String check_interval_config = "check_interval_minutes";
+	final String rate_foreground_config = "rate_limit_foreground";
+	final String rate_background_config = "rate_limit_background";
+	final String rate_windows_config = "rate_limit_windows";
+	final String peer_cache_config = "peer_cache";
+	final String mirrors_config = "mirrors";
+	final String protocol_config = "protocol";
+	final String channel_config = "channel";
+	final String cohort_config = "cohort";
+	final String unattended_config = "unattended";
+	final String reboot_at_config = "reboot_at";
+	static final long DEFAULT_CHECK_INTERVAL_MINUTES = 24 * 60;
+	int download_connections = 1;
+	long check_interval_minutes = DEFAULT_CHECK_INTERVAL_MINUTES;
+	// download caps in bytes per second, 0 is unlimited.
+	long rate_limit_foreground = 0;
+	long rate_limit_background = 0;
+	List<RateLimiter.Window> rate_limit_windows = new ArrayList<RateLimiter.Window>();
+	// serve verified payloads to other boards on the LAN and look for them there first.
+	boolean peer_cache = false;
+	// base URLs (protocol://host:port) of every server carrying the OTA files,
+	// best first once rankMirrors() ran. The URLs above point at the first one.
+	List<URL> mirrors = new ArrayList<URL>();
+	long mirrors_ranked_at = -1;
+	// release channel of this device, matched against ota.channel on the server.
+	String channel = null;
+	// rollout cohort of this device, see RolloutGate.
+	String cohort = null;
+	// OTAUpdateService installs what the background check finds without an operator.
+	boolean unattended = false;
+	// local minute of day the unattended reboot is done at, -1 for right after apply.
+	int reboot_at = -1;
+	// USB stick or SD card the URLs point at instead of the mirrors, null if none.
+	LocalPackageSource local_source = null;
+	// directory the current base puts in front of every OTA path, "" for a server.
+	String base_path = "";
 	public OTAServerConfig (String productname) throws MalformedURLException {
 			defaultConfigure(productname);
+			mirrors.add(new URL(payloadURL.getProtocol(), payloadURL.getHost(), payloadURL.getPort(), "/"));
+			loadOptionsFromFile(configFile);
+	}
+
+	// optional client tunables, the file may not exist or not set any of them.
+	// Each option is parsed on its own, a malformed one keeps its default.
+	void loadOptionsFromFile (String configFile) {
+		BuildPropParser parser;
+		try {
+			parser = new BuildPropParser(new File(configFile));
+		} catch (IOException e) {
+			Log.d(TAG, "no OTA options from " + configFile);
+			return;
+		}
+		download_connections = (int) longOption(parser, download_connections_config, download_connections);
+		check_interval_minutes = Math.max(1, longOption(parser, check_interval_config, check_interval_minutes));
+		rate_limit_foreground = Math.max(0, longOption(parser, rate_foreground_config, rate_limit_foreground / 1024)) * 1024;
+		rate_limit_background = Math.max(0, longOption(parser, rate_background_config, rate_limit_background / 1024)) * 1024;
+		try {
+			rate_limit_windows = RateLimiter.parseWindows(parser.getProp(rate_windows_config));
+		} catch (NumberFormatException e) {
+			Log.e(TAG, "wrong " + rate_windows_config + " in " + configFile + ": " + e.getMessage());
+		}
+		peer_cache = flagOption(parser, peer_cache_config, peer_cache);
+		String ch = parser.getProp(channel_config);
+		if (ch != null && !ch.trim().isEmpty())
+			channel = ch.trim();
+		String co = parser.getProp(cohort_config);
+		if (co != null && !co.trim().isEmpty())
+			cohort = co.trim();
+		unattended = flagOption(parser, unattended_config, unattended);
+		String rebootAt = parser.getProp(reboot_at_config);
+		if (rebootAt != null && !rebootAt.trim().isEmpty()) {
+			try {
+				reboot_at = RateLimiter.parseMinute(rebootAt) % (24 * 60);
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "wrong " + reboot_at_config + " in " + configFile + ": " + rebootAt);
+			}
+		}
+		String protocol = parser.getProp(protocol_config);
+		if (protocol != null && !protocol.trim().isEmpty()) {
+			URL primary = mirrors.get(0);
+			try {
+				mirrors.set(0, new URL(protocol.trim(), primary.getHost(), primary.getPort(), "/"));
+			} catch (MalformedURLException e) {
+				Log.e(TAG, "wrong " + protocol_config + " in " + configFile + ": " + e.getMessage());
+			}
+		}
+		String list = parser.getProp(mirrors_config);
+		if (list != null) {
+			try {
+				mirrors.addAll(parseMirrors(list, mirrors.get(0).getProtocol()));
+			} catch (MalformedURLException e) {
+				Log.e(TAG, "wrong mirror in " + configFile + ": " + e.getMessage());
+			}
+		}
+		try {
+			useMirror(mirrors.get(0));
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "cannot use mirror " + mirrors.get(0) + ": " + e.getMessage());
+		}
+	}
+
+	// numeric option, fallback if it is not set or does not parse.
+	long longOption(BuildPropParser parser, String key, long fallback) {
+		String value = parser.getProp(key);
+		if (value == null || value.trim().isEmpty())
+			return fallback;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			Log.e(TAG, "wrong " + key + " in OTA options: " + value);
+			return fallback;
+		}
+	}
+
+	// "1" or "true" turns an option on, anything else off.
+	boolean flagOption(BuildPropParser parser, String key, boolean fallback) {
+		String value = parser.getProp(key);
+		if (value == null)
+			return fallback;
+		return value.trim().equals("1") || value.trim().equalsIgnoreCase("true");
+	}
+
+	// "host[:port]" or "protocol://host[:port]" entries separated by ','.
+	static List<URL> parseMirrors(String list, String protocol) throws MalformedURLException {
+		List<URL> result = new ArrayList<URL>();
+		for (String item : list.split(",")) {
+			item = item.trim();
+			if (item.isEmpty())
+				continue;
+			URL url = new URL(item.indexOf("://") < 0 ? protocol + "://" + item : item);
+			result.add(new URL(url.getProtocol(), url.getHost(), url.getPort(), "/"));
+		}
+		return result;
+	}
+
+	// same file on another server, or below the directory of a file: base.
+	URL rebase(URL url, URL base) throws MalformedURLException {
+		String file = url.getFile().substring(base_path.length());
+		return new URL(base.getProtocol(), base.getHost(), base.getPort(), basePath(base, file) + file);
+	}
+
+	// what a base URL puts in front of an OTA path, "" for a server root.
+	static String basePath(URL base, String file) {
+		String path = base.getPath();
+		if (path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		if (!path.isEmpty() && !file.startsWith("/"))
+			path += "/";
+		return path;
+	}
+
+	// point every OTA URL at base.
+	void useMirror(URL base) throws MalformedURLException {
+		String prefix = basePath(base, buildpropURL.getFile().substring(base_path.length()));
+		if (updatePackageURL != null)
+			updatePackageURL = rebase(updatePackageURL, base);
+		if (buildpropURL != null)
+			buildpropURL = rebase(buildpropURL, base);
+		if (diffbuildpropURL != null)
+			diffbuildpropURL = rebase(diffbuildpropURL, base);
+		if (rolloutURL != null)
+			rolloutURL = rebase(rolloutURL, base);
+		if (manifestURL != null)
+			manifestURL = rebase(manifestURL, base);
+		if (payloadPropertiesURL != null)
+			payloadPropertiesURL = rebase(payloadPropertiesURL, base);
+		if (payloadURL != null)
+			payloadURL = rebase(payloadURL, base);
+		if (diffPayloadPropertiesURL != null)
+			diffPayloadPropertiesURL = rebase(diffPayloadPropertiesURL, base);
+		if (diffPayloadURL != null)
+			diffPayloadURL = rebase(diffPayloadURL, base);
+		base_path = prefix;
+	}
+
+	// switch to a USB stick or SD card carrying the OTA folder layout if one is
+	// mounted, otherwise back to the mirrors. Returns the source to read from.
+	public synchronized PackageSource selectSource(Context context, PackageSource network)
+	{
+		String layout = buildpropURL.getFile().substring(base_path.length());
+		LocalPackageSource found = LocalPackageSource.find(context, layout);
+		try {
+			if (found != null) {
+				if (local_source == null || !local_source.getRoot().equals(found.getRoot()))
+					useMirror(found.getBase());
+				local_source = found;
+				return found;
+			}
+			if (local_source != null) {
+				Log.d(TAG, "OTA package on " + local_source.getRoot() + " is gone, use " + mirrors.get(0));
+				local_source = null;
+				useMirror(mirrors.get(0));
+			}
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "cannot switch OTA source: " + e);
+		}
+		return network;
+	}
+
+	public synchronized boolean isLocalSource()
+	{
+		return local_source != null;
+	}
+
+	public synchronized List<URL> getMirrors()
+	{
+		return new ArrayList<URL>(mirrors);
+	}
+
+	// probe all mirrors concurrently and switch to the fastest reachable one.
+	public synchronized void rankMirrors(OTAConnectionManager connections, Executor executor)
+	{
+		if (mirrors.size() < 2 || local_source != null)
+			return;
+		URL sample = ab_slot ? payloadURL : updatePackageURL;
+		List<URL> ranked = new ArrayList<URL>();
+		for (MirrorProbe.Result r : MirrorProbe.rank(connections, executor, mirrors, sample.getFile()))
+			ranked.add(r.base);
+		mirrors = ranked;
+		mirrors_ranked_at = SystemClock.elapsedRealtime();
+		try {
+			useMirror(mirrors.get(0));
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "cannot use mirror " + mirrors.get(0) + ": " + e);
+		}
+		Log.d(TAG, "use OTA mirror " + mirrors.get(0));
+	}
+
+	// true if rankMirrors() ran within the last maxAgeMs.
+	public synchronized boolean mirrorsRankedWithin(long maxAgeMs)
+	{
+		return mirrors_ranked_at >= 0 && SystemClock.elapsedRealtime() - mirrors_ranked_at < maxAgeMs;
+	}
+
+	// the selected payload on every mirror, best first.
+	public synchronized List<URL> getPackageURLs()
+	{
+		List<URL> urls = new ArrayList<URL>();
+		for (URL base : mirrors) {
+			try {
+				urls.add(rebase(getPackageURL(), base));
+			} catch (MalformedURLException e) {
+				Log.e(TAG, "cannot use mirror " + base + ": " + e);
+			}
+		}
+		return urls;
 	}
 
 	boolean loadConfigureFromFile (String configFile, String product) {
 		try {
-			BuildPropParser parser = new BuildPropParser(new File(configFile), null);
+			BuildPropParser parser = new BuildPropParser(new File(configFile));
 			String server = parser.getProp(server_ip_config);
 			String port_str = parser.getProp(port_config_str);
 			String android_name = parser.getProp(android_nickname);
@@ -98,8 +352,7 @@ public class OTAServerConfig {
 				Log.d(TAG, "payload_properties.txt" + payloadPropertiesURL.toString());
 			}
 		} catch (Exception e) {
-			Log.e(TAG, "wrong format/error of OTA configure file.");
-			e.printStackTrace();
+			Log.e(TAG, "wrong format/error of OTA configure file.", e);
 			return false;
 		}
 		
@@ -123,6 +376,17 @@ public class OTAServerConfig {
         payloadURL = new URL(default_protocol, default_serveraddr, default_port, payloadAddr);
         Log.d(TAG, "payload.in addr =" + payloadURL.toString());
         Log.d(TAG,"property file = " + payloadPropertiesURL.toString());
+		// incremental package published next to the full one.
+		diffbuildpropURL = new URL(default_protocol, default_serveraddr, default_port, product + "/build_diff.prop");
+		// optional staged rollout settings of the release, see RolloutGate.
+		rolloutURL = new URL(default_protocol, default_serveraddr, default_port, product + "/rollout.prop");
+		// all of the metadata above in one file, see OTAManifest.
+		manifestURL = new URL(default_protocol, default_serveraddr, default_port, product + "/manifest.json");
+		diffPayloadPropertiesURL = new URL(default_protocol, default_serveraddr, default_port, product + "/payload_properties_diff.txt");
+		diffPayloadURL = new URL(default_protocol, default_serveraddr, default_port, product + "/payload_diff.bin");
+		if (SystemProperties.get("ro.board.platform").indexOf("imx8") != -1) {
+			ab_slot = true;
+		}
 	}
 	
 	public boolean ab_slot()
@@ -140,20 +404,98 @@ public class OTAServerConfig {
 		is_diff_upgrade = true;
 	}
 
-	public URL getPackageURL ()
+	public void setDiffUpgrade(boolean diff)
 	{
-        return payloadURL;
+		is_diff_upgrade = diff;
+	}
 
+	// payload of the selected upgrade type.
+	public URL getPackageURL ()
+	{
+		return is_diff_upgrade ? diffPayloadURL : payloadURL;
 	}
 
+	public URL getFullPackageURL() { return payloadURL; }
+
+	public URL getDiffPackageURL() { return diffPayloadURL; }
+
 	public URL getPayloadPropertiesURL ()
 	{
             //Log.v(TAG,"Return : " + payloadPropertiesURL.toString());
-			return payloadPropertiesURL;
+			return is_diff_upgrade ? diffPayloadPropertiesURL : payloadPropertiesURL;
+	}
+
+	public int getDownloadConnections()
+	{
+		return download_connections;
+	}
+
+	// how often the background checker polls the server.
+	public long getCheckIntervalMinutes()
+	{
+		return check_interval_minutes;
+	}
+
+	// token bucket set up from the rate_limit_* options.
+	public RateLimiter createRateLimiter()
+	{
+		return new RateLimiter(rate_limit_foreground, rate_limit_background, rate_limit_windows);
+	}
+
+	public String getChannel()
+	{
+		return channel;
+	}
+
+	public String getCohort()
+	{
+		return cohort;
+	}
+
+	public boolean isUnattended()
+	{
+		return unattended;
+	}
+
+	public int getRebootMinute()
+	{
+		return reboot_at;
+	}
+
+	public boolean isPeerCacheEnabled()
+	{
+		return peer_cache;
+	}
+
+	public File getStagingDir ()
+	{
+		return new File(default_staging_dir);
+	}
+
+	// directories a payload may be downloaded to, most preferred first.
+	// Only payload.bin for update_engine is ever downloaded, and update_engine
+	// only reads its own directory; /cache joins once the recovery flow
+	// downloads update.zip.
+	public List<File> getStagingCandidates ()
+	{
+		List<File> dirs = new ArrayList<File>();
+		dirs.add(new File(default_staging_dir));
+		return dirs;
+	}
+
+	// name of the staged copy of the selected payload.
+	public String getStagingFileName ()
+	{
+		String path = getPackageURL().getPath();
+		return path.substring(path.lastIndexOf('/') + 1);
 	}
 
 	public URL getBuildPropURL() { return buildpropURL; }
 
 	public URL getBuildPropDiffURL() { return diffbuildpropURL; }
 
+	public URL getRolloutURL() { return rolloutURL; }
+
+	public URL getManifestURL() { return manifestURL; }
+
 }
@@ -21,16 +21,28 @@ import java.security.GeneralSecurityException;
 import java.io.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import android.os.SystemProperties;
 import android.content.*;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.RecoverySystem;
+import android.os.SystemClock;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
 import android.util.Log;
@@ -48,6 +60,10 @@ public class OTAServerManager {
 		final int MESSAGE_STATE_CHANGE = 6;
 		final int MESSAGE_ERROR = 7;
 		final int MESSAGE_WAIT_REBOOT = 8;
+		final int MESSAGE_DOWNLOAD_RATE = 9; // progress is the measured rate in bytes per second
+		final int MESSAGE_APPLY_STATUS = 10; // progress is an UpdateEngine.UpdateStatusConstants value
+		final int MESSAGE_APPLY_PROGRESS = 11; // progress is 0..100 over all update_engine phases
+		final int MESSAGE_APPLY_ETA = 12; // progress is the estimated seconds left, -1 if unknown
 		
 		// should be raise exception ? but how to do exception in async mode ?
 		final int NO_ERROR = 0;
@@ -58,62 +74,180 @@ public class OTAServerManager {
 		final int ERROR_NETWORK_ERROR = 5;
 		final int ERROR_PACKAGE_INSTALL_FAILED = 6;
 		final int ERROR_PACKAGE_VERIFY_FAILED = 7;
+		final int ERROR_INSUFFICIENT_SPACE = 8; // no staging partition has room for the package
 		
 		// results
 		final int RESULTS_ALREADY_LATEST = 1;
 
 		public void onStateOrProgress(int message, int error, Object info);
+
+		// MESSAGE_DOWNLOAD_PROGRESS, MESSAGE_VERIFY_PROGRESS and MESSAGE_DOWNLOAD_RATE
+		// arrive here without boxing. Listeners that care about allocation
+		// override it, the default hands the value on as a Long.
+		default void onProgress(int message, long progress) {
+			onStateOrProgress(message, 0, Long.valueOf(progress));
+		}
 		
 	}
 
+	// key in build_diff.prop holding the fingerprint the diff payload applies to.
+	static final String DIFF_BASE_FINGERPRINT = "ota.diff.base.fingerprint";
+	// build.prop of the running system, compared with the server's in debug logs.
+	static final String LOCAL_BUILD_PROP = "/system/build.prop";
+
 	public enum OtaTypeSelect {
 		NONE, FULL_OTA, DIFF_OTA, BOTH_OTA;
 	}
 
-	public class OTAUpdateEngineCallback extends UpdateEngineCallback {
-		private OTAStateChangeListener mListener;
+	// what checkAsync() completes with.
+	public static class CheckResult {
+		// OTAStateChangeListener.NO_ERROR or one of its ERROR_* values.
+		public final int error;
+		// server build.prop, null on error.
+		public final BuildPropParser build;
+		public final OtaTypeSelect type;
+		// null on error.
+		public final VersionComparator.Result version;
+		// bytes of the selected payload, -1 if unknown or there is no update.
+		public final long packageSize;
 
-		public OTAUpdateEngineCallback(OTAStateChangeListener listener){
-			mListener = listener;
+		CheckResult(BuildPropParser build, OtaTypeSelect type, VersionComparator.Result version,
+				long packageSize) {
+			this.error = OTAStateChangeListener.NO_ERROR;
+			this.build = build;
+			this.type = type;
+			this.version = version;
+			this.packageSize = packageSize;
 		}
 
+		CheckResult(int error) {
+			this.error = error;
+			this.build = null;
+			this.type = OtaTypeSelect.NONE;
+			this.version = null;
+			this.packageSize = -1;
+		}
+	}
+
+	// reports to whichever listener the manager has at the time of the callback,
+	// update_engine may still be applying when a new Activity attaches.
+	public class OTAUpdateEngineCallback extends UpdateEngineCallback {
 		public void onStatusUpdate(int status, float percent) {
-			if (status == UpdateEngine.UpdateStatusConstants.DOWNLOADING) {
-				publishDownloadProgress(100, (long)(percent*100));
+			mStatusKnown.countDown();
+			// update_engine re-hashes the written partitions while VERIFYING.
+			boolean verifying = status == UpdateEngine.UpdateStatusConstants.VERIFYING;
+			if (verifying != mMetrics.inPhase(OTAMetrics.PHASE_VERIFY)) {
+				if (verifying)
+					mMetrics.beginPhase(OTAMetrics.PHASE_VERIFY);
+				else
+					mMetrics.endPhase(OTAMetrics.PHASE_VERIFY);
 			}
+			publishApplyProgress(status, percent);
 		}
 
 		public void onPayloadApplicationComplete(int errorCode) {
 			Log.d(TAG, "onPayloadApplicationComplete: errorCode: " + errorCode);
+			mApplying = false;
+			mMetrics.endPhase(OTAMetrics.PHASE_VERIFY);
+			mMetrics.endPhase(OTAMetrics.PHASE_APPLY);
 			if (errorCode == UpdateEngine.ErrorCodeConstants.SUCCESS) {
-				if (this.mListener != null && !mStop)
-					this.mListener.onStateOrProgress(OTAStateChangeListener.MESSAGE_WAIT_REBOOT, 0, null);
+				mRebootPending = true;
+				mMetrics.beginPhase(OTAMetrics.PHASE_REBOOT_WAIT);
+				// payload is on the inactive slot now, the staged copy is not needed
+				// anymore unless it is served to peers.
+				if (mDownloader != null && mPeerCache == null)
+					mDownloader.discard();
+				finishUpdate(OTAStateChangeListener.NO_ERROR);
+				// the reboot prompt comes with the UPDATED_NEED_REBOOT status,
+				// see publishApplyProgress().
 			}else{
+                mMetrics.recordUpdateEngineError(errorCode);
                 reportInstallError(OTAStateChangeListener.ERROR_PACKAGE_INSTALL_FAILED);
             }
 		}
 	}
 
-	private OTAStateChangeListener mListener;	
+	// read by the task and update_engine callback threads.
+	private volatile OTAStateChangeListener mListener;	
 	private OTAServerConfig mConfig;
 	private BuildPropParser parser = null;
 	private BuildPropParser parser_diff = null;
+	// manifest.json of the last check, null if the server has none.
+	volatile OTAManifest mManifest;
+	// what the last check decided, see decideOtaType().
+	volatile OtaTypeSelect mOtaType = OtaTypeSelect.NONE;
+	volatile VersionComparator.Result mVersionResult;
 	long mCacheProgress = -1;
-	boolean mStop = false;
+	long mCacheVerifyProgress = -1;
+	// update_engine callbacks arrive on one thread, no locking needed.
+	ApplyProgress mApplyProgress = new ApplyProgress();
+	int mCacheApplyProgress = -1;
+	long mCacheApplyEta = -2;
+	boolean mUpdateEngineBound = false;
+	// throughput sampling for MESSAGE_DOWNLOAD_RATE.
+	static final long RATE_SAMPLE_MS = 1000;
+	long mRateSampleTime = -1;
+	long mRateSampleBytes;
+	// written by the UI thread, read by the task and update_engine callback threads.
+	volatile boolean mStop = false;
+	volatile boolean mApplying = false;
+	// update_engine applied a payload and waits for the reboot.
+	volatile boolean mRebootPending = false;
+	// released by the first status update_engine sends after bindUpdateEngine().
+	final CountDownLatch mStatusKnown = new CountDownLatch(1);
+	// how long isRebootPending() waits for that first status.
+	static final long STATUS_WAIT_MS = 2000;
 	Context mContext;
-	String mUpdatePackageLocation = "/cache/update.zip";
+	// where StagingPlanner put the package of the current download.
+	volatile File mStagedPackage;
 	String TAG = "OTA";
 	Handler mSelfHandler;
 	WakeLock mWakelock;
 	UpdateEngine mUpdateEngine;
 	String[] mUpdateHeader;
+	volatile PayloadDownloader mDownloader;
+	OTATaskExecutor mExecutor = new OTATaskExecutor();
+	// pending results of checkAsync() and updateAsync().
+	CompletableFuture<CheckResult> mCheckFuture;
+	volatile CompletableFuture<Integer> mUpdateFuture;
+	// the manager whose updateAsync() is running. OtaAppActivity and
+	// OTAUpdateService each own one and must not stage the same payload twice.
+	static final AtomicReference<OTAServerManager> sUpdating = new AtomicReference<OTAServerManager>();
+	// every request to the OTA server goes through here.
+	OTAConnectionManager mConnections;
+	MetadataCache mMetadataCache;
+	// the OTA server, or a USB stick / SD card found by the last check.
+	volatile PackageSource mSource;
+	PackageSource mNetworkSource;
+	// parsed build.prop per URL, reused while the server answers 304.
+	HashMap<String, BuildPropParser> mPropCache = new HashMap<String, BuildPropParser>();
+	// false if the last fetchPropertyList() was answered 304.
+	boolean mPropChanged = true;
+	// HEAD answers of the current check, keyed by URL.
+	HashMap<String, RemoteResourceInfo> mResourceInfo = new HashMap<String, RemoteResourceInfo>();
+	OTAMetrics mMetrics;
+	RateLimiter mRateLimiter;
+	// null unless ota.conf enables peer_cache.
+	PeerCacheServer mPeerCache;
+	// how long to look for a LAN peer before going to the OTA server.
+	static final long PEER_DISCOVERY_MS = 3000;
+	// mirrors are measured again before a download once they were ranked this long ago.
+	static final long MIRROR_RANK_MAX_AGE_MS = 30 * 60 * 1000;
 	
 	public OTAServerManager(Context context) throws MalformedURLException {
+		mMetrics = OTAMetrics.get(context);
 		mConfig = new OTAServerConfig(Build.PRODUCT);
+		mRateLimiter = mConfig.createRateLimiter();
 		PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
-		mWakelock = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK, "OTA Wakelock");
+		// keep the CPU up, not the screen: downloads also run unattended.
+		mWakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "OTA Wakelock");
 		mContext = context;
 		mUpdateEngine = new UpdateEngine();
+		mConnections = new OTAConnectionManager();
+		mMetadataCache = new MetadataCache(new File(context.getCacheDir(), "ota_metadata"), mConnections);
+		mSource = mNetworkSource = new HttpPackageSource(mConnections, mMetadataCache);
+		if (mConfig.isPeerCacheEnabled())
+			mPeerCache = PeerCacheServer.start(context.getApplicationContext(), mConfig.getStagingDir());
 	}
 
 	public OTAStateChangeListener getmListener() {
@@ -123,117 +257,413 @@ public class OTAServerManager {
 	public void setmListener(OTAStateChangeListener mListener) {
 		this.mListener = mListener;
 	}
-	//Todo:Check of USB connected instead of Network
-    //Now alway return true
+	// any network up, ethernet or wifi. A package on USB storage needs none.
 	public boolean checkNetworkOnline() {
-		// ConnectivityManager conMgr =  (ConnectivityManager)mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-		
-		// if (conMgr.getNetworkInfo(ConnectivityManager.TYPE_ETHERNET).isConnectedOrConnecting()||
-			// conMgr.getNetworkInfo(ConnectivityManager.TYPE_WIFI).isConnectedOrConnecting()) {
-			// return true;
-		// } else {
-			// return false;
-		// }
-        return true;
-	}	
+		ConnectivityManager conMgr = (ConnectivityManager)mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = conMgr.getActiveNetworkInfo();
+		return info != null && info.isConnectedOrConnecting();
+	}
+
+	// true if the last check found the OTA package on a USB stick or SD card.
+	public boolean isLocalSource() {
+		return mSource.isLocal();
+	}
 	
+	// build.prop from the current mirror; if that fails, rank the mirrors
+	// again and ask the best one.
+	BuildPropParser fetchBuildProp() throws IOException {
+		try {
+			return fetchPropertyList(mConfig.getBuildPropURL());
+		} catch (IOException e) {
+			if (mSource.isLocal() || mConfig.getMirrors().size() < 2)
+				throw e;
+			Log.w(TAG, "fetch " + mConfig.getBuildPropURL() + " failed (" + e + "), rank mirrors again");
+			rankMirrors();
+			return fetchPropertyList(mConfig.getBuildPropURL());
+		}
+	}
+
+	// blocking check that reports through the listener, see checkAsync().
 	public void startCheckingVersion() {
-		
+		publishCheck(runCheck());
+	}
+
+	// the listener side of a check result.
+	void publishCheck(CheckResult result) {
+		// a check aborted by onStop() fails with a network error that says
+		// nothing about the server, keep it out of metrics and backoff.
+		if (mStop) {
+			Log.d(TAG, "check stopped, result " + result.error + " dropped");
+			return;
+		}
+		if (result.error != OTAStateChangeListener.NO_ERROR) {
+			reportCheckingError(result.error);
+			return;
+		}
+		if (this.mListener != null)
+			this.mListener.onStateOrProgress(OTAStateChangeListener.STATE_IN_CHECKED, 
+					OTAStateChangeListener.NO_ERROR, result.build);
+	}
+
+	CheckResult runCheck() {
 		Log.v(TAG, "startCheckingVersion");
-		if (checkURLOK(mConfig.getBuildPropURL()) == false) {
-			if (this.mListener != null) {
-				if (this.checkNetworkOnline()) {
-					reportCheckingError(OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER);
-                                        Log.v(TAG, "Could not found build.prop in USB stick");
-                                } 
-				else {
-					reportCheckingError(OTAStateChangeListener.ERROR_WIFI_NOT_AVALIBLE);
-                                        Log.v(TAG, "error wifi or ethernet not avalible");
-                                }  
+		mMetrics.beginPhase(OTAMetrics.PHASE_CHECK);
+		synchronized (mResourceInfo) {
+			mResourceInfo.clear();
+		}
+		// a package on removable storage wins over the network.
+		mSource = mConfig.selectSource(mContext, mNetworkSource);
+		// one manifest.json answers the whole check when the server has it. A
+		// server without one is not asked again until build.prop changes.
+		URL manifestURL = mConfig.getManifestURL();
+		boolean manifestMissing = manifestURL != null && !mSource.isLocal()
+				&& mMetadataCache.isMissing(manifestURL);
+		mManifest = fetchManifest();
+		// a single GET tells whether build.prop exists and brings its content,
+		// no separate HEAD in front of it.
+		try {
+			parser = (mManifest != null) ? mManifest.getFull().build : fetchBuildProp();
+			if (mManifest == null && manifestMissing && mPropChanged
+					&& mMetadataCache.forgetMissing(manifestURL)) {
+				// a new release, it may come with a manifest this time.
+				mManifest = fetchManifest();
+				if (mManifest != null)
+					parser = mManifest.getFull().build;
 			}
-			
-			return;
+		} catch (IOException e) {
+			Log.e(TAG, "fetch " + mConfig.getBuildPropURL() + " failed: " + e);
+			parser = null;
+			mOtaType = OtaTypeSelect.NONE;
+			mVersionResult = null;
+			mMetrics.endPhase(OTAMetrics.PHASE_CHECK);
+			if (mSource.isLocal() || this.checkNetworkOnline()) {
+				Log.v(TAG, "Could not found build.prop on server or USB stick");
+				return new CheckResult(OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER);
+			}
+			Log.v(TAG, "error wifi or ethernet not avalible");
+			return new CheckResult(OTAStateChangeListener.ERROR_WIFI_NOT_AVALIBLE);
 		}
-		
-		parser = getTargetPackagePropertyList(mConfig.getBuildPropURL());
-		// if (ab_slot()) {
-			// parser_diff = getTargetPackagePropertyList(mConfig.getBuildPropDiffURL());
-		// }
-		
-		if (parser != null) {
-			if (this.mListener != null)
-				this.mListener.onStateOrProgress(OTAStateChangeListener.STATE_IN_CHECKED, 
-						OTAStateChangeListener.NO_ERROR, parser);
-		} else {
-			reportCheckingError(OTAStateChangeListener.ERROR_WRITE_FILE_ERROR);
+		// only a newer build is worth a HEAD of its payload; it runs while the
+		// diff build.prop and rollout.prop are fetched.
+		CompletableFuture<Long> fullSize = null;
+		if ((mManifest == null || mManifest.getFull().size < 0)
+				&& VersionComparator.forDevice(mConfig.getChannel()).compare(parser)
+						== VersionComparator.Result.NEWER)
+			fullSize = probeSizeAsync(mConfig.getFullPackageURL());
+		parser_diff = null;
+		if (mManifest != null) {
+			if (ab_slot() && mManifest.getDiff() != null)
+				parser_diff = mManifest.getDiff().build;
+		} else if (ab_slot() && mConfig.getBuildPropDiffURL() != null) {
+			try {
+				parser_diff = fetchPropertyList(mConfig.getBuildPropDiffURL());
+			} catch (IOException e) {
+				Log.d(TAG, "no diff package on server: " + e.getMessage());
+			}
+		}
+		mOtaType = decideOtaType();
+		mMetrics.endPhase(OTAMetrics.PHASE_CHECK);
+		long size = -1;
+		if (mOtaType != OtaTypeSelect.NONE) {
+			// the full size is in the probe cache by now, a diff is probed here.
+			if (fullSize != null && !mConfig.getDiffUpgrade())
+				fullSize.join();
+			size = getUpgradePackageSize();
+		} else if (fullSize != null) {
+			fullSize.cancel(false);
+		}
+		return new CheckResult(parser, mOtaType, mVersionResult, size);
+	}
+
+	// HEAD of url on the I/O pool as part of the check, fills the probe
+	// cache; -1 if it failed.
+	CompletableFuture<Long> probeSizeAsync(final URL url) {
+		return CompletableFuture.supplyAsync(new Supplier<Long>() {
+			public Long get() {
+				try {
+					RemoteResourceInfo info = probe(url, OTAMetrics.PHASE_CHECK);
+					return info.exists() ? info.size : -1L;
+				} catch (IOException e) {
+					Log.d(TAG, "probe " + url + " failed: " + e);
+					return -1L;
+				}
+			}
+		}, mExecutor.io());
+	}
+
+	// manifest.json of the release, null if the server only has the per-file
+	// layout or the manifest cannot be used.
+	OTAManifest fetchManifest() {
+		URL url = mConfig.getManifestURL();
+		if (url == null)
+			return null;
+		try {
+			long begin = SystemClock.elapsedRealtime();
+			// most servers have none, the 404 is remembered.
+			MetadataCache.Response response = mSource.isLocal() ? mSource.open(url)
+					: mMetadataCache.open(url, true);
+			mMetrics.recordRequest(OTAMetrics.PHASE_CHECK, SystemClock.elapsedRealtime() - begin);
+			try {
+				return OTAManifest.parse(response.stream);
+			} finally {
+				response.close();
+			}
+		} catch (FileNotFoundException e) {
+			Log.d(TAG, "no manifest.json, use per-file layout");
+			return null;
+		} catch (IOException e) {
+			Log.w(TAG, "cannot use " + url + " (" + e + "), use per-file layout");
+			return null;
 		}
 	}
 
+	// manifest entry of the selected upgrade type, null without a manifest.
+	OTAManifest.Entry manifestEntry() {
+		OTAManifest manifest = mManifest;
+		if (manifest == null)
+			return null;
+		return mConfig.getDiffUpgrade() ? manifest.getDiff() : manifest.getFull();
+	}
+
 	public boolean getUpdateHeader(URL propertiesURL)
 	{
 		try {
             Log.v(TAG,"Get update header from " + propertiesURL.toString());
 			URL url = propertiesURL;
-			url.openConnection();
-			InputStream is = url.openStream();
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
+			mMetrics.beginPhase(OTAMetrics.PHASE_HEADER);
+			long begin = SystemClock.elapsedRealtime();
+			MetadataCache.Response response = mSource.open(url);
+			mMetrics.recordRequest(OTAMetrics.PHASE_HEADER, SystemClock.elapsedRealtime() - begin);
+			BufferedReader br = new BufferedReader(new InputStreamReader(response.stream));
 			List<String> lines = new ArrayList<String>();
 			String line = null;
-			while ((line = br.readLine()) != null) {
-				lines.add(line);
+			try {
+				while ((line = br.readLine()) != null) {
+					lines.add(line);
+				}
+			} finally {
+				br.close();
 			}
-			br.close();
-			is.close();
 			mUpdateHeader = lines.toArray(new String[lines.size()]);
-			mUpdateEngine.bind(new OTAUpdateEngineCallback(this.mListener));
+			bindUpdateEngine();
 
 			return true;
 		} catch (IOException e) {
-            Log.v(TAG,"Failed 1");
-			e.printStackTrace();
+			Log.e(TAG, "cannot read update header from " + propertiesURL + ": " + e);
 			return false;
 		} catch (Exception e) {
-            Log.v(TAG,"Failed 2");
-			e.printStackTrace();
+			Log.e(TAG, "cannot bind update_engine", e);
 			return false;
+		} finally {
+			mMetrics.endPhase(OTAMetrics.PHASE_HEADER);
 		}
 	}
 
-	// return true if needs to upgrade
-    //Todo : Tamnx2 currently alway return FULL_OTA Need to check
+	// result of the last check, decided once when it finished.
 	public OtaTypeSelect compareLocalVersionToServer() {
-		boolean full_ota = false;
+		return mOtaType;
+	}
+
+	public VersionComparator.Result getVersionResult() {
+		return mVersionResult;
+	}
+
+	OtaTypeSelect decideOtaType() {
 		if (parser == null) {
 			Log.d(TAG, "compareLocalVersion Without fetch remote prop list.");
 			return OtaTypeSelect.NONE;
 		}
+		mVersionResult = VersionComparator.forDevice(mConfig.getChannel()).compare(parser);
+		Log.d(TAG, "remote " + parser.getProp("ro.build.fingerprint") + " (" + parser.getProp("ro.build.date.utc")
+				+ "), local " + Build.FINGERPRINT + " (" + Build.TIME / 1000 + "): " + mVersionResult);
+		if (mVersionResult != VersionComparator.Result.UP_TO_DATE && Log.isLoggable(TAG, Log.DEBUG))
+			logBuildDiff();
 		OtaTypeSelect upgrade = OtaTypeSelect.NONE;
-		Long buildutc = Build.TIME;
-		// *1000 because Build.java also *1000, align with it.
-		Long remoteBuildUTC = (Long.parseLong(parser.getProp("ro.build.date.utc"))) * 1000;
-		if (buildutc < remoteBuildUTC)
-			full_ota = true;
-        else{
-            //Todo : Add "Update Anyway" button
-        }
-        //Cheating here
-		upgrade = OtaTypeSelect.FULL_OTA;
-		// here only check build time, in your case, you may also check build id, etc.
-		Log.d(TAG, "remote BUILD TIME: " + remoteBuildUTC  + " local BUILD TIME:" + buildutc);
+		if (mVersionResult == VersionComparator.Result.NEWER && !inRollout()) {
+			mVersionResult = VersionComparator.Result.NOT_IN_ROLLOUT;
+		} else if (mVersionResult == VersionComparator.Result.NEWER) {
+			upgrade = OtaTypeSelect.FULL_OTA;
+			if (ab_slot() && diffApplies())
+				upgrade = OtaTypeSelect.BOTH_OTA;
+		}
+		// prefer the incremental payload whenever it was built against this device's build.
+		mConfig.setDiffUpgrade(upgrade == OtaTypeSelect.BOTH_OTA);
 		return upgrade;
 	}
+
+	// which ro.build properties the server build changes against the running one.
+	void logBuildDiff() {
+		try {
+			List<String> changed = new BuildPropParser(new File(LOCAL_BUILD_PROP)).diff(parser);
+			StringBuilder sb = new StringBuilder();
+			for (String key : changed) {
+				if (key.startsWith("ro.build."))
+					sb.append(' ').append(key);
+			}
+			Log.d(TAG, changed.size() + " properties differ from " + LOCAL_BUILD_PROP + ":" + sb);
+		} catch (IOException e) {
+			Log.d(TAG, "cannot read " + LOCAL_BUILD_PROP + ": " + e);
+		}
+	}
+
+	// measure the mirrors through this manager's connections and I/O pool,
+	// so cancel() also stops the probes.
+	void rankMirrors() {
+		mConfig.rankMirrors(mConnections, mExecutor.io());
+	}
+
+	// staged rollout of the release, from build.prop and the optional rollout.prop
+	// or the manifest.
+	boolean inRollout() {
+		BuildPropParser sidecar = null;
+		if (mManifest != null) {
+			sidecar = mManifest.getRollout();
+		} else if (mConfig.getRolloutURL() != null) {
+			try {
+				sidecar = fetchPropertyList(mConfig.getRolloutURL());
+			} catch (FileNotFoundException e) {
+				Log.d(TAG, "no rollout.prop: " + e.getMessage());
+			} catch (IOException e) {
+				// it may hold the rollout keys, do not release to everyone on a bad answer.
+				Log.w(TAG, "cannot read rollout.prop, hold the release back: " + e);
+				return false;
+			}
+		}
+		return RolloutGate.forDevice(mContext, mConfig.getCohort())
+				.admits(parser, sidecar, System.currentTimeMillis());
+	}
+
+	// build_diff.prop is the target build.prop of the incremental package plus
+	// DIFF_BASE_FINGERPRINT, the fingerprint of the build it was generated from.
+	boolean diffApplies() {
+		if (parser_diff == null)
+			return false;
+		String base = parser_diff.getProp(DIFF_BASE_FINGERPRINT);
+		if (base == null) {
+			Log.w(TAG, "build_diff.prop has no " + DIFF_BASE_FINGERPRINT + ", ignore diff package");
+			return false;
+		}
+		if (!base.equals(Build.FINGERPRINT)) {
+			Log.d(TAG, "diff package is for " + base + ", device runs " + Build.FINGERPRINT);
+			return false;
+		}
+		// the diff must lead to the same build the full package offers, an
+		// unknown target is not preferred over it.
+		String target = parser_diff.getProp("ro.build.fingerprint");
+		if (target == null || !target.equals(parser.getProp("ro.build.fingerprint"))) {
+			Log.w(TAG, "diff package leads to " + target + ", not the full build, ignore it");
+			return false;
+		}
+		return true;
+	}
+
+	// bytes the incremental payload saves over the full one, -1 if unknown.
+	public long getDiffSavings() {
+		OTAManifest manifest = mManifest;
+		if (manifest != null && manifest.getDiff() != null
+				&& manifest.getFull().size >= 0 && manifest.getDiff().size >= 0)
+			return manifest.getFull().size - manifest.getDiff().size;
+		try {
+			RemoteResourceInfo full = probe(mConfig.getFullPackageURL(), OTAMetrics.PHASE_SIZE);
+			RemoteResourceInfo diff = probe(mConfig.getDiffPackageURL(), OTAMetrics.PHASE_SIZE);
+			if (!full.exists() || !diff.exists() || full.size < 0 || diff.size < 0)
+				return -1;
+			Log.d(TAG, "diff payload " + diff.size + " bytes, full payload " + full.size + " bytes");
+			return full.size - diff.size;
+		} catch (IOException e) {
+			Log.e(TAG, "cannot get payload sizes: " + e);
+			return -1;
+		}
+	}
 	
-	void publishDownloadProgress(long total, long downloaded) {
+	// called from every download connection in parallel mode.
+	synchronized void publishDownloadProgress(long total, long downloaded) {
 		//Log.v(TAG, "download Progress: total: " + total + "download:" + downloaded);
-		Long progress = new Long((downloaded*100)/total);
-		if (this.mListener != null && progress.longValue() != mCacheProgress) {
-			this.mListener.onStateOrProgress(OTAStateChangeListener.MESSAGE_DOWNLOAD_PROGRESS,
-					0, progress);
-			mCacheProgress = progress.longValue();
+		long progress = (downloaded*100)/total;
+		if (this.mListener != null && progress != mCacheProgress) {
+			this.mListener.onProgress(OTAStateChangeListener.MESSAGE_DOWNLOAD_PROGRESS, progress);
+			mCacheProgress = progress;
+		}
+		long now = SystemClock.elapsedRealtime();
+		if (mRateSampleTime < 0 || downloaded < mRateSampleBytes) {
+			mRateSampleTime = now;
+			mRateSampleBytes = downloaded;
+		} else if (now - mRateSampleTime >= RATE_SAMPLE_MS) {
+			long rate = (downloaded - mRateSampleBytes) * 1000 / (now - mRateSampleTime);
+			mRateSampleTime = now;
+			mRateSampleBytes = downloaded;
+			mMetrics.recordThroughput(rate);
+			if (this.mListener != null)
+				this.mListener.onProgress(OTAStateChangeListener.MESSAGE_DOWNLOAD_RATE, rate);
 		}
 	}
+
+	// the UI is showing, use the foreground download cap.
+	public void setForeground(boolean foreground) {
+		mRateLimiter.setForeground(foreground);
+	}
+
+	// override the configured download caps, 0 for unlimited, -1 to restore ota.conf.
+	public void setDownloadRateLimit(long bytesPerSecond) {
+		mRateLimiter.setOverride(bytesPerSecond);
+	}
 	
+	// the payload is applied, restart into the new slot.
+	public void rebootNow() {
+		mMetrics.endPhase(OTAMetrics.PHASE_REBOOT_WAIT);
+		PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+		pm.reboot("reboot");
+	}
+
+	// start receiving update_engine status, also for an apply started by an
+	// earlier instance. update_engine keeps every callback it is given, so
+	// bind only once; release() unbinds.
+	public synchronized void bindUpdateEngine() {
+		if (mUpdateEngineBound)
+			return;
+		mUpdateEngineBound = mUpdateEngine.bind(new OTAUpdateEngineCallback());
+	}
+
+	// one update_engine callback turned into status, overall progress and ETA
+	// messages; each is only sent when its value changed.
+	void publishApplyProgress(int status, float percent) {
+		boolean changed = mApplyProgress.update(status, percent);
+		if (changed)
+			Log.d(TAG, "update_engine status " + status);
+		if (status == UpdateEngine.UpdateStatusConstants.IDLE)
+			return;
+		boolean done = status == UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT;
+		if (done)
+			mRebootPending = true;
+		// also true for an apply this instance did not start.
+		if (!done && ApplyProgress.overall(status, 0f) >= 0)
+			mApplying = true;
+		OTAStateChangeListener listener = mListener;
+		if (listener == null)
+			return;
+		if (changed) {
+			listener.onProgress(OTAStateChangeListener.MESSAGE_APPLY_STATUS, status);
+			if (done && !mStop)
+				listener.onStateOrProgress(OTAStateChangeListener.MESSAGE_WAIT_REBOOT, 0, null);
+		}
+		int progress = mApplyProgress.getPercent();
+		if (progress != mCacheApplyProgress) {
+			listener.onProgress(OTAStateChangeListener.MESSAGE_APPLY_PROGRESS, progress);
+			mCacheApplyProgress = progress;
+		}
+		long eta = mApplyProgress.getEtaSeconds();
+		if (eta != mCacheApplyEta) {
+			listener.onProgress(OTAStateChangeListener.MESSAGE_APPLY_ETA, eta);
+			mCacheApplyEta = eta;
+		}
+	}
+
+	public OTAMetrics getMetrics() {
+		return mMetrics;
+	}
+
 	void reportCheckingError(int error) {
+		mMetrics.recordError(error);
 		if (this.mListener != null ) {
 			this.mListener.onStateOrProgress(OTAStateChangeListener.STATE_IN_CHECKED, error, null);
 	                Log.v(TAG, "---------state in checked----------- ");
@@ -241,11 +671,15 @@ public class OTAServerManager {
         }
 	
 	void reportDownloadError(int error) {
+		mMetrics.recordError(error);
+		finishUpdate(error);
 		if (this.mListener != null)
 			this.mListener.onStateOrProgress(OTAStateChangeListener.STATE_IN_DOWNLOADING, error, null);
 	}
 	
 	void reportInstallError(int error) {
+		mMetrics.recordError(error);
+		finishUpdate(error);
 		if (this.mListener != null) {
 			this.mListener.onStateOrProgress(OTAStateChangeListener.STATE_IN_UPGRADING, error, null);
                         Log.v(TAG, "---------state in upgrading----------- "); 
@@ -253,59 +687,433 @@ public class OTAServerManager {
 	}
 	
 	public long getUpgradePackageSize() {
-		if (checkURLOK(mConfig.getPackageURL()) == false) {
-			Log.e(TAG, "getUpgradePckageSize Failed");
-			return -1;
-		}
-		
-		URL url = mConfig.getPackageURL();
-		URLConnection con;
+		OTAManifest.Entry entry = manifestEntry();
+		if (entry != null && entry.size >= 0)
+			return entry.size;
+		mMetrics.beginPhase(OTAMetrics.PHASE_SIZE);
 		try {
-			con = url.openConnection();
-			return con.getContentLength();
+			RemoteResourceInfo info = probe(mConfig.getPackageURL(), OTAMetrics.PHASE_SIZE);
+			if (!info.exists()) {
+				Log.e(TAG, "getUpgradePckageSize Failed: HTTP " + info.code);
+				return -1;
+			}
+			return info.size;
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.e(TAG, "getUpgradePckageSize Failed: " + e);
 			return -1;
+		} finally {
+			mMetrics.endPhase(OTAMetrics.PHASE_SIZE);
 		}
 	}
+
+	// HEAD a URL (stat a local file) once per check; the answer is shared between the size shown
+	// in the UI and the download that follows.
+	RemoteResourceInfo probe(URL url, String phase) throws IOException {
+		RemoteResourceInfo info;
+		synchronized (mResourceInfo) {
+			info = mResourceInfo.get(url.toString());
+		}
+		if (info != null)
+			return info;
+		long begin = SystemClock.elapsedRealtime();
+		info = mSource.info(url);
+		mMetrics.recordRequest(phase, SystemClock.elapsedRealtime() - begin);
+		synchronized (mResourceInfo) {
+			mResourceInfo.put(url.toString(), info);
+		}
+		return info;
+	}
 	
 	public void onStop() {
 		mStop = true;
+		cancel();
+	}
+
+	// done with this manager for good: stop its work and take the callback
+	// back from update_engine. The Activity keeps its manager bound across
+	// onStop(), short lived owners call this instead.
+	public synchronized void release() {
+		onStop();
+		if (mUpdateEngineBound) {
+			mUpdateEngine.unbind();
+			mUpdateEngineBound = false;
+		}
+	}
+
+	// stop the check or download running on the task executor. update_engine
+	// keeps applying a payload it already accepted.
+	public void cancel() {
+		mExecutor.cancelAll();
+		CompletableFuture<CheckResult> check = mCheckFuture;
+		if (check != null)
+			check.cancel(false);
+		CompletableFuture<Integer> update = mUpdateFuture;
+		if (update != null)
+			update.cancel(false);
+		PayloadDownloader downloader = mDownloader;
+		if (downloader != null)
+			downloader.cancel();
+		// closing the sockets is what unblocks a thread sitting in read().
+		mConnections.abortAll();
+	}
+
+	// legacy entry point, the result arrives through the listener.
+	public Future<?> submitCheckingVersion() {
+		return checkAsync();
+	}
+
+	// check on the task executor. The listener is told as before; the future
+	// completes with the same result, or is cancelled by cancel(). A check
+	// that is already running hands back its future.
+	public synchronized CompletableFuture<CheckResult> checkAsync() {
+		if (mCheckFuture != null && !mCheckFuture.isDone())
+			return mCheckFuture;
+		mStop = false;
+		final CompletableFuture<CheckResult> future = new CompletableFuture<CheckResult>();
+		mCheckFuture = future;
+		Future<?> task = mExecutor.submit(OTATaskExecutor.TASK_CHECK, new Runnable() {
+			public void run() {
+				try {
+					CheckResult result = runCheck();
+					// same for cancel(): the caller no longer wants the result.
+					if (!future.isCancelled())
+						publishCheck(result);
+					future.complete(result);
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		if (task == null)
+			future.completeExceptionally(new RejectedExecutionException("too many OTA tasks"));
+		return future;
+	}
+
+	// size of the selected payload without blocking the caller.
+	public CompletableFuture<Long> packageSizeAsync() {
+		return CompletableFuture.supplyAsync(new Supplier<Long>() {
+			public Long get() {
+				return getUpgradePackageSize();
+			}
+		}, mExecutor.io());
+	}
+
+	// legacy entry point, progress and result arrive through the listener.
+	public Future<?> submitDownloadUpgradePackage(final boolean diff) {
+		return updateAsync(diff);
+	}
+
+	// download, verify and hand the payload to update_engine. The future
+	// completes with NO_ERROR once the update is applied and waits for the
+	// reboot, or with the ERROR_* the listener also gets. Full and diff
+	// upgrade share one task key, so only one payload is ever being
+	// downloaded and applied. While another manager in this process is
+	// updating, the caller follows that update instead of starting one.
+	public synchronized CompletableFuture<Integer> updateAsync(final boolean diff) {
+		if (mUpdateFuture != null && !mUpdateFuture.isDone())
+			return mUpdateFuture;
+		if (isRebootPending()) {
+			// update_engine refuses a second payload until the device restarted.
+			Log.i(TAG, "update already applied, waiting for reboot");
+			if (mListener != null && !mStop)
+				mListener.onStateOrProgress(OTAStateChangeListener.MESSAGE_WAIT_REBOOT, 0, null);
+			return CompletableFuture.completedFuture(OTAStateChangeListener.NO_ERROR);
+		}
+		OTAServerManager owner = sUpdating.get();
+		if (owner != null && owner != this) {
+			CompletableFuture<Integer> running = owner.mUpdateFuture;
+			if (running != null && !running.isDone()) {
+				Log.i(TAG, "update already running in this process, following it");
+				// a copy, so cancelling it does not stop the other manager.
+				return running.thenApply(Function.<Integer>identity());
+			}
+		}
+		mStop = false;
+		final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		mUpdateFuture = future;
+		sUpdating.set(this);
+		future.whenComplete(new BiConsumer<Integer, Throwable>() {
+			public void accept(Integer error, Throwable t) {
+				sUpdating.compareAndSet(OTAServerManager.this, null);
+			}
+		});
+		Future<?> task = mExecutor.submit(OTATaskExecutor.TASK_DOWNLOAD, new Runnable() {
+			public void run() {
+				mConfig.setDiffUpgrade(diff);
+				try {
+					startDownloadUpgradePackage();
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		if (task == null)
+			future.completeExceptionally(new RejectedExecutionException("too many OTA tasks"));
+		return future;
+	}
+
+	// ends the pending updateAsync() future, if any.
+	void finishUpdate(int error) {
+		CompletableFuture<Integer> future = mUpdateFuture;
+		if (future != null)
+			future.complete(error);
+	}
+
+	// an update is applied and the device only needs to restart: this process
+	// saw it finish, or the bound update_engine says so.
+	public boolean isRebootPending() {
+		if (mMetrics.inPhase(OTAMetrics.PHASE_REBOOT_WAIT))
+			return true;
+		// update_engine sends its current status right after bind, but
+		// asynchronously; a check can be done before it arrived.
+		if (mUpdateEngineBound) {
+			try {
+				if (!mStatusKnown.await(STATUS_WAIT_MS, TimeUnit.MILLISECONDS))
+					Log.w(TAG, "no status from update_engine yet");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return mRebootPending;
+	}
+
+	// true while a payload is downloaded or update_engine is applying it.
+	public boolean isBusy() {
+		return mApplying || mExecutor.isRunning(OTATaskExecutor.TASK_DOWNLOAD)
+				|| sUpdating.get() != null;
 	}
 	
 	public void startDownloadUpgradePackage() {
 		
 		Log.v(TAG, "startDownloadUpgradePackage()");
+		// a check needs one small file and uses whatever mirror is current;
+		// the payload is worth picking the fastest one for.
+		if (!mSource.isLocal() && !mConfig.mirrorsRankedWithin(MIRROR_RANK_MAX_AGE_MS))
+			rankMirrors();
 
-		if (checkURLOK(mConfig.getPackageURL()) == false) {
-            Log.v(TAG, "checkURLOK failed () for " + mConfig.getPackageURL());
-	//		if (this.mListener != null)
-				//reportDownloadError(OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER);
-		//	return;
-		}else{
-            Log.v(TAG,"getPackageURL sucess");
-        }
         //Log.v(TAG,"Get playload property from " + mConfig.getPayloadPropertiesURL().toString());
-			if (getUpdateHeader(mConfig.getPayloadPropertiesURL()) == false) {
+			OTAManifest.Entry entry = manifestEntry();
+			if (entry != null && entry.payloadProperties != null) {
+				mUpdateHeader = entry.payloadProperties;
+				bindUpdateEngine();
+			} else if (getUpdateHeader(mConfig.getPayloadPropertiesURL()) == false) {
                 Log.v(TAG, "getUpdateHeader failed () for " + mConfig.getPayloadPropertiesURL());
+				finishUpdate(OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER);
 				reportCheckingError(OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER);
 									Log.v(TAG, "error cannot find server!");
 				return;
 			}
-            Log.d(TAG,"now Apply payload from: " + mConfig.getPackageURL().toString());
+			if (mSource.isLocal()) {
+				applyLocalPayload();
+				return;
+			}
+			PayloadVerifier verifier;
+			try {
+				verifier = PayloadVerifier.fromHeader(mUpdateHeader);
+			} catch (PayloadVerifier.VerifyException e) {
+				Log.e(TAG, e.getMessage());
+				reportDownloadError(OTAStateChangeListener.ERROR_PACKAGE_VERIFY_FAILED);
+				return;
+			}
+			if (verifier == null)
+				Log.w(TAG, "payload_properties.txt has no FILE_HASH, payload is not verified");
+			File staging;
+			try {
+				staging = planStaging(verifier);
+			} catch (StagingPlanner.InsufficientSpaceException e) {
+				Log.e(TAG, e.getMessage());
+				reportDownloadError(OTAStateChangeListener.ERROR_INSUFFICIENT_SPACE);
+				return;
+			}
 			mWakelock.acquire();
-			mUpdateEngine.applyPayload(mConfig.getPackageURL().toString(), 0l, 0l, mUpdateHeader);
-			mWakelock.release();
+			try {
+				long size = -1;
+				PayloadDownloader origin = null;
+				mMetrics.beginPhase(OTAMetrics.PHASE_DOWNLOAD);
+				synchronized (this) {
+					mRateSampleTime = -1;
+				}
+				try {
+					if (mPeerCache != null && verifier != null) {
+						// never serve a file that is about to be overwritten.
+						if (!verifier.getHashHex().equals(mPeerCache.publishedHash(staging)))
+							mPeerCache.withdraw(staging);
+						size = downloadFromPeer(staging, verifier);
+					}
+					if (size < 0) {
+						mDownloader = origin = newDownloader(mConfig.getPackageURL(), staging, verifier);
+						mDownloader.setMirrors(mConfig.getPackageURLs());
+						mDownloader.setConnections(mConfig.getDownloadConnections());
+						mDownloader.setRateLimiter(mRateLimiter);
+						mDownloader.setKnownInfo(probe(mConfig.getPackageURL(), OTAMetrics.PHASE_DOWNLOAD));
+						size = mDownloader.download();
+					}
+				} catch (PayloadVerifier.VerifyException e) {
+					Log.e(TAG, "payload verify failed: " + e.getMessage());
+					// corrupted or mismatched data must not be resumed from.
+					if (mPeerCache != null)
+						mPeerCache.withdraw(staging);
+					mDownloader.discard();
+					reportDownloadError(OTAStateChangeListener.ERROR_PACKAGE_VERIFY_FAILED);
+					return;
+				} catch (StagingPlanner.InsufficientSpaceException e) {
+					Log.e(TAG, e.getMessage());
+					mDownloader.discard();
+					reportDownloadError(OTAStateChangeListener.ERROR_INSUFFICIENT_SPACE);
+					return;
+				} catch (FileNotFoundException e) {
+					Log.e(TAG, "payload not found on server: " + e.getMessage());
+					reportDownloadError(OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER);
+					return;
+				} catch (IOException e) {
+					if (mStop || Thread.currentThread().isInterrupted()) {
+						Log.d(TAG, "download cancelled, staged ranges are kept");
+						return;
+					}
+					Log.e(TAG, "download payload failed: " + e);
+					reportDownloadError(OTAStateChangeListener.ERROR_NETWORK_ERROR);
+					return;
+				} finally {
+					if (origin != null)
+						mMetrics.recordRetries(OTAMetrics.PHASE_DOWNLOAD, origin.getRetries());
+					mMetrics.endPhase(OTAMetrics.PHASE_DOWNLOAD);
+				}
+				if (mPeerCache != null && verifier != null)
+					mPeerCache.publish(staging, verifier.getHashHex(), size);
+				if (mStop || Thread.currentThread().isInterrupted())
+					return;
+				Log.d(TAG,"now Apply payload from: " + staging + " size " + size);
+				applyPayload("file://" + staging.getAbsolutePath(), size);
+			} finally {
+				mWakelock.release();
+			}
 			return;
 
 	}
+
+	// update_engine reads the payload straight off the USB stick or SD card,
+	// nothing is downloaded or copied; it checks FILE_HASH itself.
+	void applyLocalPayload() {
+		URL url = mConfig.getPackageURL();
+		RemoteResourceInfo info;
+		try {
+			info = probe(url, OTAMetrics.PHASE_SIZE);
+		} catch (IOException e) {
+			info = null;
+		}
+		if (info == null || !info.exists()) {
+			Log.e(TAG, "payload missing on removable storage: " + url);
+			reportDownloadError(OTAStateChangeListener.ERROR_CANNOT_FIND_SERVER);
+			return;
+		}
+		if (mStop || Thread.currentThread().isInterrupted())
+			return;
+		mWakelock.acquire();
+		try {
+			Log.d(TAG, "now Apply payload in place from: " + url.getPath() + " size " + info.size);
+			applyPayload("file://" + url.getPath(), info.size);
+		} finally {
+			mWakelock.release();
+		}
+	}
+
+	// hand the payload to update_engine. It throws instead of calling back
+	// when it refuses, e.g. while an applied update waits for the reboot.
+	private void applyPayload(String url, long size) {
+		mApplying = true;
+		mApplyProgress.reset();
+		mMetrics.beginPhase(OTAMetrics.PHASE_APPLY);
+		try {
+			mUpdateEngine.applyPayload(url, 0l, size, mUpdateHeader);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "update_engine refused " + url + ": " + e);
+			mApplying = false;
+			mMetrics.endPhase(OTAMetrics.PHASE_APPLY);
+			reportInstallError(OTAStateChangeListener.ERROR_PACKAGE_INSTALL_FAILED);
+		}
+	}
+
+	// staging file on a partition with room for the package. When the size is
+	// not known yet the candidate with the most room is used; no other one
+	// could take a payload that does not fit there.
+	File planStaging(PayloadVerifier verifier) throws StagingPlanner.InsufficientSpaceException {
+		List<File> candidates = mConfig.getStagingCandidates();
+		String name = mConfig.getStagingFileName();
+		long size = (verifier != null) ? verifier.getExpectedSize() : -1;
+		if (size < 0) {
+			try {
+				size = probe(mConfig.getPackageURL(), OTAMetrics.PHASE_SIZE).size;
+			} catch (IOException e) {
+				size = -1;
+			}
+		}
+		StagingPlanner planner = new StagingPlanner(candidates);
+		File staging = (size < 0) ? planner.planUnknownSize(name) : planner.plan(name, size);
+		Log.d(TAG, "stage package at " + staging);
+		mStagedPackage = staging;
+		return staging;
+	}
+
+	PayloadDownloader newDownloader(URL source, File staging, PayloadVerifier verifier) {
+		PayloadDownloader downloader = new PayloadDownloader(mConnections, source, staging);
+		downloader.setProgressListener(payloadProgressListener);
+		if (verifier != null)
+			downloader.setVerifier(verifier, payloadVerifyListener);
+		return downloader;
+	}
+
+	// fetch the payload from a board on the LAN that already has it. Returns
+	// the size, or -1 to fall back to the OTA server; staged ranges carry over.
+	long downloadFromPeer(File staging, PayloadVerifier verifier) throws IOException {
+		URL peer;
+		try {
+			peer = new PeerFinder(mContext, mConnections, mPeerCache.getServiceName())
+					.find(verifier.getHashHex(), PEER_DISCOVERY_MS);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("download cancelled");
+		}
+		if (peer == null)
+			return -1;
+		mDownloader = newDownloader(peer, staging, verifier);
+		try {
+			return mDownloader.download();
+		} catch (PayloadVerifier.VerifyException e) {
+			Log.w(TAG, "payload from peer " + peer + " does not verify, use OTA server");
+			mDownloader.discard();
+			return -1;
+		} catch (InterruptedIOException | StagingPlanner.InsufficientSpaceException e) {
+			throw e;
+		} catch (IOException e) {
+			if (mStop)
+				throw e;
+			Log.w(TAG, "download from peer " + peer + " failed (" + e + "), use OTA server");
+			return -1;
+		} finally {
+			mMetrics.recordRetries(OTAMetrics.PHASE_DOWNLOAD, mDownloader.getRetries());
+		}
+	}
+
+	PayloadDownloader.ProgressListener payloadProgressListener = new PayloadDownloader.ProgressListener() {
+		public void onProgress(long total, long downloaded) {
+			publishDownloadProgress(total, downloaded);
+		}
+	};
+	
+	PayloadVerifier.ProgressListener payloadVerifyListener = new PayloadVerifier.ProgressListener() {
+		public void onVerifyProgress(long total, long verified) {
+			long progress = (verified * 100) / total;
+			if (mListener != null && progress != mCacheVerifyProgress) {
+				mListener.onProgress(OTAStateChangeListener.MESSAGE_VERIFY_PROGRESS, progress);
+				mCacheVerifyProgress = progress;
+			}
+		}
+	};
 	
 	RecoverySystem.ProgressListener recoveryVerifyListener = new RecoverySystem.ProgressListener() {
 		public void onProgress(int progress) {
 			Log.d(TAG, "verify progress" + progress);
 			if (mListener != null)
-				mListener.onStateOrProgress(OTAStateChangeListener.MESSAGE_VERIFY_PROGRESS, 
-						0, new Long(progress));
+				mListener.onProgress(OTAStateChangeListener.MESSAGE_VERIFY_PROGRESS, progress);
 		}
 	};
 	
@@ -317,35 +1125,42 @@ public class OTAServerManager {
 			return;
 		}
 
-		File recoveryFile = new File(mUpdatePackageLocation);
+		File recoveryFile = mStagedPackage;
+		if (recoveryFile == null)
+			recoveryFile = new File(mConfig.getStagingCandidates().get(0), mConfig.getStagingFileName());
 		
 		// first verify package
          try {
         	 mWakelock.acquire();
+        	 mMetrics.beginPhase(OTAMetrics.PHASE_VERIFY);
         	 RecoverySystem.verifyPackage(recoveryFile, recoveryVerifyListener, null);
          } catch (IOException e1) {
+        	 Log.e(TAG, "cannot verify " + recoveryFile, e1);
         	 reportInstallError(OTAStateChangeListener.ERROR_PACKAGE_VERIFY_FALIED);
-        	 e1.printStackTrace();
         	 return;
          } catch (GeneralSecurityException e1) {
+        	 Log.e(TAG, "package signature check failed", e1);
         	 reportInstallError(OTAStateChangeListener.ERROR_PACKAGE_VERIFY_FALIED);
-        	 e1.printStackTrace();
         	 return;
          } finally {
+        	 mMetrics.endPhase(OTAMetrics.PHASE_VERIFY);
         	 mWakelock.release();
          }
 
          // then install package
          try {
         	 mWakelock.acquire();
+        	 // recovery reboots the device, the phase stays open in the saved metrics.
+        	 mMetrics.beginPhase(OTAMetrics.PHASE_APPLY);
       	   RecoverySystem.installPackage(mContext, recoveryFile);
          } catch (IOException e) {
-      	   // TODO Auto-generated catch block
+        	 Log.e(TAG, "cannot install " + recoveryFile, e);
+        	 mMetrics.endPhase(OTAMetrics.PHASE_APPLY);
         	 reportInstallError(OTAStateChangeListener.ERROR_PACKAGE_INSTALL_FAILED);
-        	 e.printStackTrace();
         	 return;
          } catch (SecurityException e){
-        	 e.printStackTrace();
+        	 Log.e(TAG, "not allowed to install " + recoveryFile, e);
+        	 mMetrics.endPhase(OTAMetrics.PHASE_APPLY);
         	 reportInstallError(OTAStateChangeListener.ERROR_PACKAGE_INSTALL_FAILED);
         	 return;
          } finally {
@@ -355,61 +1170,46 @@ public class OTAServerManager {
 
 	}
 
-	boolean checkURLOK(URL url) {
-		try {
-			HttpURLConnection.setFollowRedirects(false);
-			
-			HttpURLConnection con =  (HttpURLConnection) url.openConnection();
-			
-			con.setRequestMethod("HEAD");
-			
-			return (con.getResponseCode() == HttpURLConnection.HTTP_OK);
-		} catch (Exception e) {
-			e.printStackTrace();
-			return false;
-		}
-	}
-	
-	
 	// function: 
 	// download the property list from remote site, and parse it to peroerty list.
 	// the caller can parser this list and get information.
 	BuildPropParser getTargetPackagePropertyList(URL configURL) {
-		
-		// first try to download the property list file. the build.prop of target image.
 		try {
-			URL url =  configURL;
-			url.openConnection();
-			InputStream reader = url.openStream();
-			ByteArrayOutputStream writer = new ByteArrayOutputStream();
-			byte[] buffer = new byte[153600];
-			int totalBufRead = 0;
-			int bytesRead;
-			
-			Log.d(TAG, "start download: " + url.toString() + "to buffer");
-
-			while ((bytesRead = reader.read(buffer)) > 0) {
-				writer.write(buffer, 0, bytesRead);
-				buffer = new byte[153600];
-				totalBufRead += bytesRead;
-			}
-
-			Log.d(TAG, "download finish:" + (new Integer(totalBufRead).toString()) + "bytes download");
-			reader.close();
-
-			BuildPropParser parser = new BuildPropParser(writer, mContext);
-
-			return parser;
-
+			return fetchPropertyList(configURL);
 		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
-		} catch (Exception e) {
-			e.printStackTrace();
+			Log.e(TAG, "cannot fetch " + configURL + ": " + e);
 			return null;
 		}
 	}
 
+	BuildPropParser fetchPropertyList(URL configURL) throws IOException {
+		// first try to download the property list file. the build.prop of target image.
+		URL url =  configURL;
+		Log.d(TAG, "start download: " + url.toString());
+		long begin = SystemClock.elapsedRealtime();
+		MetadataCache.Response response = mSource.open(url);
+		mMetrics.recordRequest(OTAMetrics.PHASE_CHECK, SystemClock.elapsedRealtime() - begin);
+		mPropChanged = !response.notModified;
+		BuildPropParser parser = null;
+		if (response.notModified)
+			parser = mPropCache.get(url.toString());
+		if (parser != null) {
+			response.close();
+			Log.d(TAG, "build.prop unchanged on server, reuse parsed copy");
+			return parser;
+		}
+		try {
+			// parse straight from the stream, the cache copy is written as it is read.
+			parser = new BuildPropParser(response.stream);
+		} finally {
+			response.close();
+		}
+		mPropCache.put(url.toString(), parser);
+		Log.d(TAG, "download finish: " + parser.size() + " properties");
+
+		return parser;
+	}
+
 	public boolean handleMessage(Message arg0) {
 		// TODO Auto-generated method stub
 		return false;
@@ -422,4 +1222,9 @@ public class OTAServerManager {
 	public void setDiffUpgrade() {
 		mConfig.setDiffUpgrade();
 	}
+
+	// true if the last check selected the incremental payload.
+	public boolean getDiffUpgrade() {
+		return mConfig.getDiffUpgrade();
+	}
 }
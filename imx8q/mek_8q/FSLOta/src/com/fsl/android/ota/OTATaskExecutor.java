@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+// Small bounded pool that runs the blocking OTA operations. Tasks are keyed:
+// submitting a key that is still running hands back the running task instead
+// of starting a second one.
+public class OTATaskExecutor {
+	final String TAG = "OTA";
+
+	public static final String TASK_CHECK = "check";
+	public static final String TASK_DOWNLOAD = "download";
+
+	static final int MAX_THREADS = 2;
+	static final int MAX_QUEUED = 4;
+	static final int MAX_IO_THREADS = 2;
+	static final long KEEP_ALIVE_SECONDS = 30;
+
+	private final ThreadPoolExecutor mExecutor;
+	// short blocking calls (HEAD probes) run beside the keyed tasks, so a
+	// check can wait on them while a download holds the other task thread.
+	private final ThreadPoolExecutor mIo;
+	private final HashMap<String, Future<?>> mTasks = new HashMap<String, Future<?>>();
+
+	OTATaskExecutor() {
+		mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "OTA task " + mCount.incrementAndGet());
+					}
+				});
+		mExecutor.allowCoreThreadTimeOut(true);
+		mIo = new ThreadPoolExecutor(MAX_IO_THREADS, MAX_IO_THREADS,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "OTA io " + mCount.incrementAndGet());
+					}
+				});
+		mIo.allowCoreThreadTimeOut(true);
+	}
+
+	// pool for the CompletableFuture stages of OTAServerManager.
+	public Executor io() {
+		return mIo;
+	}
+
+	// run task under key unless a task with that key is still pending or running;
+	// returns the handle of whichever task owns the key, or null if the pool is full.
+	public synchronized Future<?> submit(String key, Runnable task) {
+		Future<?> running = mTasks.get(key);
+		if (running != null && !running.isDone()) {
+			Log.d(TAG, "OTA task " + key + " already running, ignore request");
+			return running;
+		}
+		try {
+			Future<?> future = mExecutor.submit(task);
+			mTasks.put(key, future);
+			return future;
+		} catch (RejectedExecutionException e) {
+			Log.e(TAG, "too many OTA tasks, drop " + key);
+			return null;
+		}
+	}
+
+	public synchronized boolean isRunning(String key) {
+		Future<?> running = mTasks.get(key);
+		return running != null && !running.isDone();
+	}
+
+	// interrupts the task thread; blocking network reads additionally need
+	// their connection closed, see OTAServerManager.cancel().
+	public synchronized void cancel(String key) {
+		Future<?> running = mTasks.remove(key);
+		if (running != null)
+			running.cancel(true);
+	}
+
+	public synchronized void cancelAll() {
+		for (Future<?> running : mTasks.values())
+			running.cancel(true);
+		mTasks.clear();
+	}
+}
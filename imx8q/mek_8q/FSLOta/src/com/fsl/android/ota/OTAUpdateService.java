@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.net.MalformedURLException;
+import java.util.Calendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.util.Log;
+
+// Headless update: check, download, verify, apply and reboot without
+// OtaAppActivity on screen. Runs as a foreground service so it outlives the
+// Activity and the background check that started it, and holds only a
+// partial wake lock. Started by OTACheckJobService when ota.conf sets
+// unattended=1 and the check found an update.
+public class OTAUpdateService extends Service {
+	static final String TAG = "OTA";
+	static final String ACTION_UPDATE = "com.fsl.android.ota.action.UPDATE";
+	static final String ACTION_REBOOT = "com.fsl.android.ota.action.REBOOT";
+	static final String CHANNEL_ID = "ota_update";
+	static final int NOTIFICATION_ID = 0x07a;
+	// updateAsync() result when the check found nothing to install.
+	static final int NO_UPDATE = -1;
+
+	private OTAServerManager mManager;
+	private NotificationManager mNotificationManager;
+	private Notification.Builder mNotification;
+	private WakeLock mWakelock;
+	private boolean mRunning = false;
+	// what the notification shows, so progress only redraws it on change.
+	private int mShownText = -1;
+	private long mShownProgress = -1;
+
+	public static void start(Context context) {
+		context.startForegroundService(new Intent(context, OTAUpdateService.class).setAction(ACTION_UPDATE));
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		mNotificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+				getText(R.string.update_channel), NotificationManager.IMPORTANCE_LOW));
+		mNotification = new Notification.Builder(this, CHANNEL_ID)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle(getText(R.string.app_name))
+				.setOngoing(true)
+				.setOnlyAlertOnce(true);
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		mWakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "OTA Update Service");
+		mWakelock.setReferenceCounted(false);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		boolean reboot = intent != null && ACTION_REBOOT.equals(intent.getAction());
+		if (reboot)
+			showProgress(R.string.wait_for_reboot, -1);
+		else if (!mRunning)
+			showProgress(R.string.check_for_upgrade, -1);
+		startForeground(NOTIFICATION_ID, mNotification.build());
+		if (reboot) {
+			reboot();
+			return START_NOT_STICKY;
+		}
+		// restarted after the process died: the check runs again and the
+		// download resumes from the staged bytes.
+		if (!mRunning)
+			runUpdate();
+		return START_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	@Override
+	public void onDestroy() {
+		if (mManager != null)
+			mManager.release();
+		mWakelock.release();
+		super.onDestroy();
+	}
+
+	private void runUpdate() {
+		try {
+			mManager = new OTAServerManager(this);
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "wrong OTA server configure: " + e);
+			finish();
+			return;
+		}
+		mRunning = true;
+		mWakelock.acquire();
+		mManager.setmListener(mListener);
+		// status of an apply an earlier process started.
+		mManager.bindUpdateEngine();
+		final OTACheckCache cache = new OTACheckCache(this);
+		mManager.checkAsync().thenCompose(new Function<OTAServerManager.CheckResult, CompletionStage<Integer>>() {
+			public CompletionStage<Integer> apply(OTAServerManager.CheckResult result) {
+				cache.saveResult(result.error, result.type, result.build);
+				if (result.error != OTAServerManager.OTAStateChangeListener.NO_ERROR)
+					return CompletableFuture.completedFuture(result.error);
+				if (result.type == OTAServerManager.OtaTypeSelect.NONE)
+					return CompletableFuture.completedFuture(NO_UPDATE);
+				Log.i(TAG, "unattended update to " + result.build.getProp("ro.build.fingerprint"));
+				return mManager.updateAsync(result.type == OTAServerManager.OtaTypeSelect.DIFF_OTA
+						|| result.type == OTAServerManager.OtaTypeSelect.BOTH_OTA);
+			}
+		}).whenComplete(new BiConsumer<Integer, Throwable>() {
+			public void accept(Integer error, Throwable t) {
+				if (t != null) {
+					Log.w(TAG, "unattended update stopped: " + t);
+					finish();
+				} else if (error == NO_UPDATE) {
+					Log.d(TAG, "unattended update: nothing to install");
+					finish();
+				} else if (error != OTAServerManager.OTAStateChangeListener.NO_ERROR) {
+					Log.w(TAG, "unattended update failed: " + error);
+					finish();
+				} else {
+					scheduleReboot();
+				}
+			}
+		});
+	}
+
+	// reboot now, or at reboot_at from ota.conf through an alarm that
+	// starts this service again.
+	private void scheduleReboot() {
+		int minute = -1;
+		try {
+			minute = new OTAServerConfig(Build.PRODUCT).getRebootMinute();
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "wrong OTA server configure, reboot now");
+		}
+		if (minute < 0) {
+			reboot();
+			return;
+		}
+		Calendar at = Calendar.getInstance();
+		at.set(Calendar.HOUR_OF_DAY, minute / 60);
+		at.set(Calendar.MINUTE, minute % 60);
+		at.set(Calendar.SECOND, 0);
+		at.set(Calendar.MILLISECOND, 0);
+		if (at.getTimeInMillis() <= System.currentTimeMillis())
+			at.add(Calendar.DAY_OF_MONTH, 1);
+		PendingIntent reboot = PendingIntent.getForegroundService(this, 0,
+				new Intent(this, OTAUpdateService.class).setAction(ACTION_REBOOT),
+				PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		am.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, at.getTimeInMillis(), reboot);
+		Log.i(TAG, "update applied, reboot scheduled at " + at.getTime());
+		mNotification.setProgress(0, 0, false).setOngoing(false)
+				.setContentText(getString(R.string.reboot_scheduled,
+						String.format("%02d:%02d", minute / 60, minute % 60)));
+		mNotificationManager.notify(NOTIFICATION_ID, mNotification.build());
+		mRunning = false;
+		mWakelock.release();
+		// keep the notification, it tells why the device is going to restart.
+		stopForeground(false);
+		stopSelf();
+	}
+
+	private void reboot() {
+		Log.i(TAG, "unattended update: reboot");
+		if (mManager != null) {
+			mManager.rebootNow();
+			return;
+		}
+		OTAMetrics.get(this).endPhase(OTAMetrics.PHASE_REBOOT_WAIT);
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		pm.reboot("reboot");
+	}
+
+	private void finish() {
+		mRunning = false;
+		mWakelock.release();
+		stopForeground(true);
+		stopSelf();
+	}
+
+	// text is a string id, progress 0..100 or -1 for indeterminate.
+	private void showProgress(int text, long progress) {
+		synchronized (mNotification) {
+			if (text == mShownText && progress == mShownProgress)
+				return;
+			mShownText = text;
+			mShownProgress = progress;
+			mNotification.setContentText(getText(text))
+					.setProgress(100, (int) Math.max(progress, 0), progress < 0);
+			mNotificationManager.notify(NOTIFICATION_ID, mNotification.build());
+		}
+	}
+
+	private final OTAServerManager.OTAStateChangeListener mListener = new OTAServerManager.OTAStateChangeListener() {
+		private int mApplyText = R.string.apply_writing;
+
+		public void onStateOrProgress(int message, int error, Object info) {
+			// results arrive through the futures in runUpdate().
+		}
+
+		@Override
+		public void onProgress(int message, long progress) {
+			switch (message) {
+			case MESSAGE_DOWNLOAD_PROGRESS:
+				showProgress(R.string.download_upgrade_package, progress);
+				break;
+			case MESSAGE_VERIFY_PROGRESS:
+				showProgress(R.string.verify_package, progress);
+				break;
+			case MESSAGE_APPLY_STATUS:
+				mApplyText = OtaAppActivity.applyStatusText((int) progress);
+				break;
+			case MESSAGE_APPLY_PROGRESS:
+				showProgress(mApplyText, progress);
+				break;
+			}
+		}
+	};
+}
@@ -15,7 +15,10 @@
  */
 
 package com.fsl.android.ota;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.net.MalformedURLException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
@@ -24,9 +27,12 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.PowerManager;
+import android.os.UpdateEngine;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import com.fsl.android.ota.R;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.*;
@@ -54,7 +60,28 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 	Context mContext; 
 	
 	OTAServerManager mOTAManager;
+	OTACheckCache mCheckCache;
 	int mState = 0;
+	// progress written by the OTA threads, drawn at most once per frame.
+	Choreographer mChoreographer;
+	final AtomicBoolean mFramePending = new AtomicBoolean();
+	volatile int mProgressMessage;
+	volatile long mProgressValue = -1;
+	volatile long mDownloadRate = -1;
+	volatile int mApplyStatus = -1;
+	volatile long mApplyEta = -1;
+	// what the last frame drew, UI thread only.
+	int mDrawnMessage;
+	long mDrawnValue = -1;
+	long mDrawnRate = -1;
+	int mDrawnStatus = -1;
+	long mDrawnEta = -1;
+	final Choreographer.FrameCallback mProgressFrame = new Choreographer.FrameCallback() {
+		public void doFrame(long frameTimeNanos) {
+			mFramePending.set(false);
+			drawProgress();
+		}
+	};
 	private Handler mHandler = new MainHandler();	
 	/* state change will be 0 -> Checked -> Downloading -> upgrading.  */
 	
@@ -135,14 +162,18 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
         mSpinner = (ProgressBar) findViewById(R.id.spinner);
         mDownloadProgress = (ProgressBar) findViewById(R.id.download_progress_bar);
         mContext = getBaseContext();
+        mChoreographer = Choreographer.getInstance();
 	try {
 	        mOTAManager = new OTAServerManager(mContext);
 		} catch (MalformedURLException e) {
 			mOTAManager = null;
-			Log.e(TAG, "meet not a mailformat URL... should not happens.");
-			e.printStackTrace();
+			Log.e(TAG, "meet not a mailformat URL... should not happens.", e);
 		}
 		mOTAManager.setmListener(this);
+		// picks up an apply that is still running from before the Activity was recreated.
+		mOTAManager.bindUpdateEngine();
+		mCheckCache = new OTACheckCache(mContext);
+		OTACheckJobService.ensureScheduled(mContext);
     }
     
     @Override
@@ -150,15 +181,18 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
     	super.onStart();
     	
     	Log.d(TAG, "OTAAppActivity : onStart");
+    	mOTAManager.setForeground(true);
     	// default state is checking, if resume from any pervious state,
     	// resume the state
     	onStateChangeUI(mState);
+    	if (mState == STATE_IN_DOWNLOADING && !mOTAManager.isBusy()) {
+    		// the download was cancelled by onStop(), check again so the
+    		// upgrade button can resume it.
+    		mState = 0;
+    	}
     	if (mState == 0) {
-        	new Thread(new Runnable() {
-        		public void run() {
-        			mOTAManager.startCheckingVersion();		
-        		}
-        	}).start();
+    		renderCachedCheck();
+    		mOTAManager.submitCheckingVersion();
         }
     }
     
@@ -179,18 +213,27 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
     @Override
     public void onStop() {
     	super.onStop();
+    	mOTAManager.setForeground(false);
+    	mChoreographer.removeFrameCallback(mProgressFrame);
+    	mFramePending.set(false);
     	mOTAManager.onStop();
     	Log.d(TAG, "OTAAppActivity : onStop");
     }
 
+    // "adb shell dumpsys activity com.fsl.android.ota" prints the OTA metrics.
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+    	super.dump(prefix, fd, writer, args);
+    	writer.println(prefix + "OTA metrics:");
+    	mOTAManager.getMetrics().dump(prefix + "  ", writer);
+    }
+
     OnClickListener mUpgradeListener = new OnClickListener() {
 		public void onClick(View v) {
 			Log.v(TAG, "upgrade button clicked.");
-			new Thread(new Runnable() {
-				public void run() {
-					mOTAManager.startDownloadUpgradePackage();
-				}
-			}).start();
+			// a second tap while the download runs is ignored by the executor.
+			mDownloadRate = -1;
+			mOTAManager.submitDownloadUpgradePackage(false);
 			onStateChangeUI(STATE_IN_DOWNLOADING);
 		}
 		
@@ -206,12 +249,8 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
     OnClickListener mDiffUpgradeListener = new OnClickListener() {
 		public void onClick(View v) {
 			Log.v(TAG, "diff upgrade button clicked.");
-			new Thread(new Runnable() {
-				public void run() {
-					mOTAManager.setDiffUpgrade();
-					mOTAManager.startDownloadUpgradePackage();
-				}
-			}).start();
+			mDownloadRate = -1;
+			mOTAManager.submitDownloadUpgradePackage(true);
 			onStateChangeUI(STATE_IN_DOWNLOADING);
 		}
 	};
@@ -220,19 +259,22 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 		public void onClick(View v) {
 			Log.v(TAG, "reboot button clicked.");
 			try {
-				PowerManager mPowerManager = (PowerManager)getSystemService(Context.POWER_SERVICE);
-				mPowerManager.reboot("reboot");
+				mOTAManager.rebootNow();
 			} catch (Exception e) {
-				e.printStackTrace();
+				Log.e(TAG, "reboot failed", e);
 			}
 		}
 	};
 	
 	public void onStateOrProgress(int message, int error, Object info)
 	{
-            Log.v(TAG, "onStateOrProgress: " + "message: " + message + " error:" + error + " info: " + info );
+            if (Log.isLoggable(TAG, Log.VERBOSE))
+                Log.v(TAG, "onStateOrProgress: " + "message: " + message + " error:" + error + " info: " + info );
 	    switch (message) {
 	        case STATE_IN_CHECKED:
+                        mCheckCache.saveResult(error, error == NO_ERROR ?
+                                mOTAManager.compareLocalVersionToServer() : OTAServerManager.OtaTypeSelect.NONE,
+                                error == NO_ERROR ? (BuildPropParser) info : null);
                         onStateChangeUI(message);
                         mState = STATE_IN_CHECKED;
                         onStateInChecked(error, info);
@@ -249,7 +291,11 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 			break;
 		case MESSAGE_DOWNLOAD_PROGRESS:
 		case MESSAGE_VERIFY_PROGRESS:
-			onProgress(message, error, info);
+		case MESSAGE_DOWNLOAD_RATE:
+		case MESSAGE_APPLY_STATUS:
+		case MESSAGE_APPLY_PROGRESS:
+		case MESSAGE_APPLY_ETA:
+			onProgress(message, ((Long) info).longValue());
 			break;
 		case MESSAGE_WAIT_REBOOT:
 			mHandler.sendEmptyMessageDelayed(WAIT_REBOOT,0);
@@ -286,33 +332,77 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 		}
 	}
 	
-	void onProgress(int message, int error, Object info) {
-		final Long progress = new Long((Long)info); 
-		mDownloadProgress.post(new Runnable() {
-			public void run() {
-				mDownloadProgress.setProgress(progress.intValue());
-			}
-		});
-		
-		Log.v(TAG, "progress : " + progress);
-		if (message == MESSAGE_DOWNLOAD_PROGRESS) {
+	// called for every download chunk and update_engine status, keep it
+	// free of allocation: store the value and ask for one frame.
+	@Override
+	public void onProgress(int message, long progress) {
+		if (message == MESSAGE_DOWNLOAD_RATE) {
+			mDownloadRate = progress;
+		} else if (message == MESSAGE_APPLY_STATUS) {
+			mApplyStatus = (int) progress;
+		} else if (message == MESSAGE_APPLY_ETA) {
+			mApplyEta = progress;
+		} else {
+			mProgressMessage = message;
+			mProgressValue = progress;
+		}
+		if (mFramePending.compareAndSet(false, true))
+			mChoreographer.postFrameCallback(mProgressFrame);
+	}
+
+	// UI thread, once per frame at most; only touches views that changed.
+	void drawProgress() {
+		int message = mProgressMessage;
+		long progress = mProgressValue;
+		long rate = mDownloadRate;
+		int status = mApplyStatus;
+		long eta = mApplyEta;
+		if (progress != mDrawnValue) {
+			mDownloadProgress.setProgress((int) progress);
+			mDrawnValue = progress;
+		}
+		boolean stateChanged = false;
+		if (message == MESSAGE_DOWNLOAD_PROGRESS && mState != STATE_IN_DOWNLOADING) {
 			onStateChangeUI(STATE_IN_DOWNLOADING);
-			mMessageTextView.post(new Runnable() {
-				
-				public void run() {
-					mMessageTextView.setText(getText(R.string.download_upgrade_package));
-				}
-			});
-		} else if (message == MESSAGE_VERIFY_PROGRESS) {
+			stateChanged = true;
+		} else if ((message == MESSAGE_VERIFY_PROGRESS || message == MESSAGE_APPLY_PROGRESS)
+				&& mState != STATE_IN_UPGRADING) {
 			onStateChangeUI(STATE_IN_UPGRADING);
-			mMessageTextView.post(new Runnable() {
-				public void run() {
-					mMessageTextView.setText(getText(R.string.verify_package));
-				}
-			});
+			stateChanged = true;
+		}
+		if (!stateChanged && message == mDrawnMessage && rate == mDrawnRate
+				&& status == mDrawnStatus && eta == mDrawnEta)
+			return;
+		if (message == MESSAGE_DOWNLOAD_PROGRESS) {
+			CharSequence text = getText(R.string.download_upgrade_package);
+			mMessageTextView.setText(rate < 0 ? text
+					: text + " (" + Formatter.formatFileSize(this, rate) + "/s)");
+		} else if (message == MESSAGE_VERIFY_PROGRESS) {
+			mMessageTextView.setText(getText(R.string.verify_package));
+		} else if (message == MESSAGE_APPLY_PROGRESS) {
+			CharSequence text = getText(applyStatusText(status));
+			mMessageTextView.setText(eta < 0 ? text : text + "\n"
+					+ getString(R.string.apply_time_left, DateUtils.formatElapsedTime(eta)));
 		}
+		mDrawnMessage = message;
+		mDrawnRate = rate;
+		mDrawnStatus = status;
+		mDrawnEta = eta;
 	}
-	
+
+	static int applyStatusText(int status) {
+		switch (status) {
+		case UpdateEngine.UpdateStatusConstants.VERIFYING:
+			return R.string.apply_verifying;
+		case UpdateEngine.UpdateStatusConstants.FINALIZING:
+			return R.string.apply_finalizing;
+		case UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT:
+			return R.string.wait_for_reboot;
+		default:
+			return R.string.apply_writing;
+		}
+	}
+
 	void onStateDownload(int error, Object info) {
 		if (error == ERROR_CANNOT_FIND_SERVER) {
 			// in this case, the build.prop already found but the server don't have upgrade package
@@ -332,6 +422,33 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 				}
 			});
 			onStateChangeUI(STATE_IN_CHECKED);
+		} else if (error == ERROR_PACKAGE_VERIFY_FAILED) {
+			// the staged payload was dropped, upgrade again downloads it from scratch.
+			mMessageTextView.post(new Runnable() {
+				public void run() {
+					mMessageTextView.setText(getText(R.string.error_package_verify_failed));
+					mUpgradeButton.setVisibility(View.VISIBLE);
+				}
+			});
+			onStateChangeUI(STATE_IN_CHECKED);
+		} else if (error == ERROR_INSUFFICIENT_SPACE) {
+			// nothing was written, upgrade again once space was freed.
+			mMessageTextView.post(new Runnable() {
+				public void run() {
+					mMessageTextView.setText(getText(R.string.error_insufficient_space));
+					mUpgradeButton.setVisibility(View.VISIBLE);
+				}
+			});
+			onStateChangeUI(STATE_IN_CHECKED);
+		} else if (error == ERROR_NETWORK_ERROR) {
+			// staged ranges are kept, pressing upgrade again resumes the download.
+			mMessageTextView.post(new Runnable() {
+				public void run() {
+					mMessageTextView.setText(getText(R.string.error_cannot_connect_server));
+					mUpgradeButton.setVisibility(View.VISIBLE);
+				}
+			});
+			onStateChangeUI(STATE_IN_CHECKED);
 		}
 		
 		if (error == 0) {
@@ -349,6 +466,28 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 		return String.format("%.1f %sB", bytes / Math.pow(unit, exp), pre);
 	}
 	
+	// show the result of the last (possibly background) check right away,
+	// the live check started from onStart() replaces it when it finishes.
+	void renderCachedCheck() {
+		if (mCheckCache.getTime() == 0 || mCheckCache.getError() != NO_ERROR)
+			return;
+		final boolean hasUpdate = mCheckCache.getOtaType() != OTAServerManager.OtaTypeSelect.NONE;
+		final String buildId = mCheckCache.getBuildId();
+		final String description = mCheckCache.getDescription();
+		mMessageTextView.post(new Runnable() {
+			public void run() {
+				if (hasUpdate) {
+					mMessageTextView.setText(getText(R.string.have_new));
+					mVersionTextView.setText(getText(R.string.version) + ":" + buildId + "\n" +
+							getText(R.string.full_version) + ":" + description + "\n");
+					mVersionTextView.setVisibility(View.VISIBLE);
+				} else {
+					mMessageTextView.setText("Andoid:"+Build.VERSION.RELEASE + " Build ID:" + Build.ID + "\n" +  getText(R.string.already_up_to_date));
+				}
+			}
+		});
+	}
+
 	void onStateInChecked(int error, Object info) {
 		mSpinner.post(new Runnable() {	
 			public void run() {
@@ -359,7 +498,8 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 		if (error == 0) {
 			// return no error, usually means have a version info from remote server, release name is in @info
 			// needs check here whether the local version is newer then remote version
-			if (mOTAManager.compareLocalVersionToServer() == OTAServerManager.OtaTypeSelect.NONE) {
+			final OTAServerManager.OtaTypeSelect type = mOTAManager.compareLocalVersionToServer();
+			if (type == OTAServerManager.OtaTypeSelect.NONE) {
 				// we are already latest...				
 				mMessageTextView.post(new Runnable() {
 					public void run() {
@@ -371,6 +511,7 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 			} else {
 				final BuildPropParser parser = (BuildPropParser) info;
 				final long bytes = mOTAManager.getUpgradePackageSize();
+				final long saved = mOTAManager.getDiffUpgrade() ? mOTAManager.getDiffSavings() : -1;
 				mMessageTextView.post(new Runnable() {
 					public void run() {
 						onStateChangeUI(STATE_IN_CHECKED);
@@ -381,20 +522,21 @@ public class OtaAppActivity extends Activity implements OTAServerManager.OTAStat
 								mVersionTextView.setText(getText(R.string.version) +  ":" +
 										parser.getProp("ro.build.id") + "\n" +
 										getText(R.string.full_version) + ":" +
-										parser.getProp("ro.build.description") + "\n");
+										parser.getProp("ro.build.description") + "\n" +
+										(saved > 0 ? getText(R.string.diff_saves) + ":" +
+												byteCountToDisplaySize(saved, false) + "\n" : ""));
 							}
 						mUpgradeButton.setVisibility(View.VISIBLE);
 						if (mOTAManager.ab_slot()) {
 							mDiffUpgradeButton.setVisibility(View.VISIBLE);
 						}
-						if (mOTAManager.compareLocalVersionToServer() == OTAServerManager.OtaTypeSelect.BOTH_OTA) {
+						if (type == OTAServerManager.OtaTypeSelect.BOTH_OTA) {
 							mUpgradeButton.setEnabled(true);
 							mDiffUpgradeButton.setEnabled(true);
-						} else if (mOTAManager.compareLocalVersionToServer() == OTAServerManager.OtaTypeSelect.FULL_OTA) {
+						} else if (type == OTAServerManager.OtaTypeSelect.FULL_OTA) {
 							mUpgradeButton.setEnabled(true);
-                            //Tamnx2 : we dont support diff updat yet
-							//mDiffUpgradeButton.setEnabled(false);
-						} else if (mOTAManager.compareLocalVersionToServer() == OTAServerManager.OtaTypeSelect.DIFF_OTA) {
+							mDiffUpgradeButton.setEnabled(false);
+						} else if (type == OTAServerManager.OtaTypeSelect.DIFF_OTA) {
 							mUpgradeButton.setEnabled(false);
 							mDiffUpgradeButton.setEnabled(true);
 						}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import java.io.IOException;
+import java.net.URL;
+
+// Where the OTA folder layout (build.prop, payload_properties.txt,
+// payload.bin) is read from. OTAServerConfig points its URLs at the source in
+// use, the manager reads through it without knowing which one it is.
+public interface PackageSource {
+	// small metadata file, build.prop or payload_properties.txt.
+	MetadataCache.Response open(URL url) throws IOException;
+
+	// existence and size of a file without reading it.
+	RemoteResourceInfo info(URL url) throws IOException;
+
+	// true if update_engine can read the payload in place, so there is
+	// nothing to download or stage.
+	boolean isLocal();
+}
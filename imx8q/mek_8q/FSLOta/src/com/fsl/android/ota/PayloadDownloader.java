@@ -0,0 +1,439 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+// Fetch payload.bin into a local staging file with HTTP Range requests.
+// Completed ranges are recorded by a RangeTracker, so an interrupted transfer
+// continues from where it stopped instead of from byte zero. Optionally the
+// missing ranges are fetched over several connections at once, and a range
+// that fails on one mirror is continued on the next.
+public class PayloadDownloader {
+	public interface ProgressListener {
+		public void onProgress(long total, long downloaded);
+	}
+
+	final String TAG = "OTA";
+	static final int BUFFER_SIZE = 64 * 1024;
+	// flush data and persist the range state every so many bytes.
+	static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+	// smallest piece handed to a connection in parallel mode.
+	static final long MIN_CHUNK_BYTES = 1024 * 1024;
+	static final int MAX_RETRIES = 5;
+	static final int RETRY_DELAY_MS = 2000;
+
+	private final OTAConnectionManager mConnections;
+	private final URL mSource;
+	// mSource first, then mirrors carrying the same payload.
+	private final List<URL> mSources = new ArrayList<URL>();
+	private final AtomicInteger mCurrent = new AtomicInteger();
+	private final File mTarget;
+	private final RangeTracker mTracker;
+	private ProgressListener mListener;
+	private int mConnectionCount = 1;
+	private RemoteResourceInfo mKnownInfo;
+	private PayloadVerifier mVerifier;
+	private PayloadVerifier.ProgressListener mVerifyListener;
+	private RateLimiter mRateLimiter;
+	private final AtomicLong mDownloaded = new AtomicLong();
+	private volatile boolean mCancelled = false;
+	// transfer retries plus mirror failovers, for OTAMetrics.
+	private final AtomicInteger mRetries = new AtomicInteger();
+
+	PayloadDownloader(OTAConnectionManager connections, URL source, File target) {
+		mConnections = connections;
+		mSource = source;
+		mSources.add(source);
+		mTarget = target;
+		mTracker = new RangeTracker(new File(target.getPath() + ".ranges"));
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		mListener = listener;
+	}
+
+	// number of concurrent connections, 1 keeps the plain sequential transfer.
+	public void setConnections(int connections) {
+		mConnectionCount = Math.max(1, connections);
+	}
+
+	// other URLs of the same payload, best first. Only used together with a
+	// verifier: the hash is what makes bytes from different servers safe to mix.
+	public void setMirrors(List<URL> mirrors) {
+		// compare as strings, URL.equals() resolves host names.
+		for (URL url : mirrors) {
+			boolean known = false;
+			for (URL source : mSources)
+				known |= source.toString().equals(url.toString());
+			if (!known)
+				mSources.add(url);
+		}
+	}
+
+	// hash the payload while it arrives; download() then fails with a
+	// VerifyException if size or hash do not match.
+	public void setVerifier(PayloadVerifier verifier, PayloadVerifier.ProgressListener listener) {
+		mVerifier = verifier;
+		mVerifyListener = listener;
+	}
+
+	// throttle the transfer, shared by every connection of this download.
+	public void setRateLimiter(RateLimiter limiter) {
+		mRateLimiter = limiter;
+	}
+
+	// reuse a HEAD answer the caller already has, saves one round trip.
+	public void setKnownInfo(RemoteResourceInfo info) {
+		mKnownInfo = info;
+	}
+
+	public File getTarget() {
+		return mTarget;
+	}
+
+	public int getRetries() {
+		return mRetries.get();
+	}
+
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	// Download (or resume) the payload. Returns the payload size once every
+	// byte is on disk.
+	public long download() throws IOException {
+		int retries = 0;
+		while (true) {
+			checkCancelled();
+			try {
+				return downloadOnce();
+			} catch (InterruptedIOException | FileNotFoundException
+					| PayloadVerifier.VerifyException
+					| StagingPlanner.InsufficientSpaceException e) {
+				throw e;
+			} catch (IOException e) {
+				if (++retries > MAX_RETRIES)
+					throw e;
+				mRetries.incrementAndGet();
+				Log.w(TAG, "download interrupted (" + e + "), retry " + retries + "/" + MAX_RETRIES);
+				try {
+					Thread.sleep(RETRY_DELAY_MS * retries);
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException("download cancelled");
+				}
+			}
+		}
+	}
+
+	// drop the staged file and its state, e.g. after the payload was applied.
+	public void discard() {
+		mTracker.delete();
+		mTarget.delete();
+	}
+
+	private long downloadOnce() throws IOException {
+		RemoteResourceInfo info = mKnownInfo;
+		mKnownInfo = null;
+		if (info == null)
+			info = headAny();
+		if (!info.exists())
+			throw new FileNotFoundException(info.url + ": HTTP " + info.code);
+		long size = info.size;
+		// a hash pinned payload may be resumed from any source serving it,
+		// the hash check at the end catches a mix of different data. Without
+		// a hash the server's validator guards the staged ranges.
+		String validator = (mVerifier != null) ? null : info.validator;
+		boolean acceptRanges = info.acceptRanges;
+		if (size < 0)
+			throw new IOException(info.url + ": server did not report the payload size");
+		if (mVerifier != null)
+			mVerifier.checkSize(size);
+
+		if (!mTracker.matches(identity(), size, validator) || !mTarget.exists()
+				|| mTarget.length() != size) {
+			Log.d(TAG, "start new download of " + info.url + " (" + size + " bytes)");
+			mTracker.reset(identity(), size, validator);
+			mTarget.delete();
+		} else {
+			Log.d(TAG, "resume download of " + info.url + ", " + mTracker.completedBytes()
+					+ "/" + size + " bytes already staged");
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(mTarget, "rw");
+		try {
+			// preallocate, every connection then writes at its own offset.
+			StagingPlanner.preallocate(raf, mTarget, size);
+			FileChannel channel = raf.getChannel();
+			mDownloaded.set(mTracker.completedBytes());
+			publish(size, mDownloaded.get());
+			if (mVerifier != null) {
+				// the digest cannot be saved, re-read what a previous run staged.
+				mVerifier.reset();
+				mVerifier.catchUp(channel, mTracker.contiguousEnd(), mVerifyListener);
+			}
+			List<long[]> missing = mTracker.missing();
+			if (mConnectionCount > 1 && acceptRanges && !missing.isEmpty()) {
+				fetchParallel(channel, split(missing, mConnectionCount), size, validator);
+			} else {
+				for (long[] range : missing) {
+					if (fetchWithFailover(channel, range, size, validator, true))
+						break;
+				}
+			}
+			channel.force(false);
+			if (mVerifier != null) {
+				mVerifier.catchUp(channel, size, mVerifyListener);
+				mVerifier.finish();
+				if (mVerifyListener != null)
+					mVerifyListener.onVerifyProgress(size, size);
+			}
+		} finally {
+			raf.close();
+			mTracker.save();
+		}
+		if (!mTracker.isComplete())
+			throw new IOException("payload incomplete after download");
+		return size;
+	}
+
+	// cut the missing ranges into pieces so that every connection has several
+	// chunks to pull from the queue and a slow link does not hold up the end.
+	static List<long[]> split(List<long[]> missing, int connections) {
+		long remaining = 0;
+		for (long[] r : missing)
+			remaining += r[1] - r[0];
+		long chunk = Math.max(MIN_CHUNK_BYTES, remaining / (connections * 4));
+		List<long[]> chunks = new ArrayList<long[]>();
+		for (long[] r : missing) {
+			for (long pos = r[0]; pos < r[1]; pos += chunk)
+				chunks.add(new long[] { pos, Math.min(pos + chunk, r[1]) });
+		}
+		return chunks;
+	}
+
+	private void fetchParallel(final FileChannel channel, List<long[]> chunks, final long size,
+			final String validator) throws IOException {
+		final ConcurrentLinkedQueue<long[]> queue = new ConcurrentLinkedQueue<long[]>(chunks);
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		int workers = Math.min(mConnectionCount, chunks.size());
+		Log.d(TAG, "download " + chunks.size() + " chunks over " + workers + " connections");
+		Thread[] threads = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					long[] chunk;
+					while (failure.get() == null && (chunk = queue.poll()) != null) {
+						try {
+							fetchWithFailover(channel, chunk, size, validator, false);
+						} catch (IOException e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+				}
+			}, "OTA download " + i);
+			threads[i].start();
+		}
+		try {
+			for (Thread t : threads)
+				t.join();
+		} catch (InterruptedException e) {
+			failure.compareAndSet(null, new InterruptedIOException("download cancelled"));
+			for (Thread t : threads)
+				t.interrupt();
+		}
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	// HEAD the current source, moving on to the next mirror if it fails.
+	private RemoteResourceInfo headAny() throws IOException {
+		IOException failure = null;
+		RemoteResourceInfo missing = null;
+		for (int i = 0; i < mSources.size(); i++) {
+			int index = mCurrent.get();
+			try {
+				RemoteResourceInfo info = RemoteResourceInfo.head(mConnections, mSources.get(index));
+				if (info.exists())
+					return info;
+				missing = info;
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				failure = e;
+			}
+			if (!failover(index))
+				break;
+		}
+		// a mirror that could not be reached is worth another try, a 404 is not.
+		if (failure != null)
+			throw failure;
+		return missing;
+	}
+
+	// the mirror at index failed, make the next one current. False if there
+	// is nothing to fail over to.
+	private boolean failover(int index) {
+		if (mVerifier == null || mSources.size() < 2)
+			return false;
+		int next = (index + 1) % mSources.size();
+		if (mCurrent.compareAndSet(index, next))
+			Log.w(TAG, "switch payload download to " + mSources.get(next));
+		return true;
+	}
+
+	// fetch range, continuing on the next mirror from the last checkpoint
+	// when the current one fails. Every mirror is tried once.
+	private boolean fetchWithFailover(FileChannel channel, long[] range, long size,
+			String validator, boolean allowWhole) throws IOException {
+		int attempts = 0;
+		while (true) {
+			int index = mCurrent.get();
+			try {
+				return fetchRange(mSources.get(index), channel, range, size, validator, allowWhole);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				checkCancelled();
+				if (++attempts >= mSources.size() || !failover(index))
+					throw e;
+				mRetries.incrementAndGet();
+				Log.w(TAG, "range " + range[0] + "-" + range[1] + " failed on "
+						+ mSources.get(index) + ": " + e);
+				rewindVerifier(channel);
+			}
+		}
+	}
+
+	// bytes after the last checkpoint may have been hashed from the mirror
+	// that failed, the next one writes them again and need not send the same
+	// data. Hash again from what the tracker confirmed on disk.
+	private void rewindVerifier(FileChannel channel) throws IOException {
+		if (mVerifier == null || mVerifier.getHashed() <= mTracker.contiguousEnd())
+			return;
+		Log.d(TAG, "re-hash staged payload up to " + mTracker.contiguousEnd() + " after failover");
+		mVerifier.reset();
+		mVerifier.catchUp(channel, mTracker.contiguousEnd(), mVerifyListener);
+	}
+
+	// range is [start, end); start advances with every checkpoint so a caller
+	// can continue from there. Returns true if the server answered with the
+	// whole payload instead of the range.
+	private boolean fetchRange(URL source, FileChannel channel, long[] range, long size,
+			String validator, boolean allowWhole) throws IOException {
+		checkCancelled();
+		long start = range[0];
+		long end = range[1];
+		HttpURLConnection con = mConnections.open(source);
+		con.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+		if (validator != null)
+			con.setRequestProperty("If-Range", validator);
+		boolean whole = false;
+		long pos = start;
+		long checkpoint = start;
+		try {
+			int code = con.getResponseCode();
+			if (code == HttpURLConnection.HTTP_OK && (start != 0 || end != size)) {
+				// server ignored Range or the payload changed under us,
+				// nothing staged so far can be trusted to line up.
+				if (!allowWhole)
+					throw new IOException(source + ": range request answered with full payload");
+				Log.w(TAG, "server sent the full payload, restart from 0");
+				mTracker.reset(identity(), size,
+						(mVerifier != null) ? null : con.getHeaderField("ETag"));
+				mDownloaded.set(0);
+				if (mVerifier != null)
+					mVerifier.reset();
+				start = 0;
+				end = size;
+				range[0] = start;
+				range[1] = end;
+				pos = start;
+				checkpoint = start;
+				whole = true;
+			} else if (code != HttpURLConnection.HTTP_PARTIAL && code != HttpURLConnection.HTTP_OK) {
+				throw new IOException(source + ": HTTP " + code + " for range " + start + "-" + end);
+			}
+
+			InputStream in = mConnections.body(con);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+			while (pos < end) {
+				checkCancelled();
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+				if (n < 0)
+					throw new EOFException("connection closed at " + pos + " of " + end);
+				if (mRateLimiter != null)
+					mRateLimiter.acquire(n);
+				wrapped.clear();
+				wrapped.limit(n);
+				long at = pos;
+				while (wrapped.hasRemaining())
+					pos += channel.write(wrapped, pos);
+				if (mVerifier != null)
+					mVerifier.offer(at, buffer, 0, n);
+				if (pos - checkpoint >= CHECKPOINT_BYTES || pos == end) {
+					channel.force(false);
+					mTracker.add(checkpoint, pos);
+					mTracker.save();
+					checkpoint = pos;
+					range[0] = pos;
+				}
+				publish(size, mDownloaded.addAndGet(n));
+			}
+			in.close();
+			// hash whatever this range made readable without a hole.
+			if (mVerifier != null)
+				mVerifier.catchUp(channel, mTracker.contiguousEnd(), null);
+		} catch (IOException e) {
+			// a half read body is not worth draining, and a cancelled
+			// transfer must not block on it.
+			mConnections.abort(con);
+			// bytes after the last checkpoint are fetched again.
+			mDownloaded.addAndGet(checkpoint - pos);
+			throw e;
+		}
+		return whole;
+	}
+
+	// what the staged ranges belong to: the payload hash if known, else the URL.
+	private String identity() {
+		return (mVerifier != null) ? "sha256:" + mVerifier.getHashHex() : mSource.toString();
+	}
+
+	private void publish(long size, long downloaded) {
+		if (mListener != null)
+			mListener.onProgress(size, downloaded);
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (mCancelled || Thread.currentThread().isInterrupted())
+			throw new InterruptedIOException("download cancelled");
+	}
+}
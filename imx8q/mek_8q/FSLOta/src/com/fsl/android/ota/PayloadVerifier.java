@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Base64;
+import android.util.Log;
+
+// SHA-256 of payload.bin computed while it is downloaded, checked against
+// FILE_HASH / FILE_SIZE from payload_properties.txt. Bytes must be hashed in
+// file order: data arriving at the current hash position is consumed straight
+// from the download buffer, anything written ahead of it (parallel chunks,
+// ranges staged before a resume) is read back from the staging file once the
+// gap in front of it is closed.
+public class PayloadVerifier {
+	final String TAG = "OTA";
+
+	// the payload does not match payload_properties.txt; retrying the same
+	// bytes will not help.
+	public static class VerifyException extends IOException {
+		VerifyException(String message) {
+			super(message);
+		}
+	}
+
+	public interface ProgressListener {
+		public void onVerifyProgress(long total, long verified);
+	}
+
+	private final long mExpectedSize;
+	private final byte[] mExpectedHash;
+	private final ReentrantLock mLock = new ReentrantLock();
+	private MessageDigest mDigest;
+	private long mHashed;
+
+	PayloadVerifier(long expectedSize, byte[] expectedHash) {
+		mExpectedSize = expectedSize;
+		mExpectedHash = expectedHash;
+		reset();
+	}
+
+	// build from the payload_properties.txt lines, null if they carry no hash.
+	// A FILE_SIZE or FILE_HASH that does not parse is a broken header.
+	static PayloadVerifier fromHeader(String[] header) throws VerifyException {
+		String hash = null;
+		long size = -1;
+		try {
+			for (String line : header) {
+				if (line.startsWith("FILE_HASH="))
+					hash = line.substring("FILE_HASH=".length()).trim();
+				else if (line.startsWith("FILE_SIZE="))
+					size = Long.parseLong(line.substring("FILE_SIZE=".length()).trim());
+			}
+			if (hash == null || size < 0)
+				return null;
+			return new PayloadVerifier(size, Base64.decode(hash, Base64.DEFAULT));
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException from FILE_SIZE, bad base64 in FILE_HASH.
+			throw new VerifyException("malformed payload_properties.txt: " + e.getMessage());
+		}
+	}
+
+	public long getExpectedSize() {
+		return mExpectedSize;
+	}
+
+	// expected SHA-256 as lower case hex, names the payload independent of where it comes from.
+	public String getHashHex() {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : mExpectedHash)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	// start over from byte 0, e.g. the staged data was thrown away.
+	public void reset() {
+		mLock.lock();
+		try {
+			mDigest = MessageDigest.getInstance("SHA-256");
+			mHashed = 0;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	// bytes hashed so far, all of them from the start of the file.
+	public long getHashed() {
+		mLock.lock();
+		try {
+			return mHashed;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public void checkSize(long size) throws VerifyException {
+		if (size != mExpectedSize)
+			throw new VerifyException("payload size " + size + ", expected " + mExpectedSize);
+	}
+
+	// data just written at offset. Only consumed if it continues the hash
+	// and nobody is catching up right now; otherwise catchUp() reads it later.
+	public void offer(long offset, byte[] data, int off, int len) {
+		if (!mLock.tryLock())
+			return;
+		try {
+			if (offset == mHashed) {
+				mDigest.update(data, off, len);
+				mHashed += len;
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	// hash what is already in the file up to end.
+	public void catchUp(FileChannel channel, long end, ProgressListener listener) throws IOException {
+		mLock.lock();
+		try {
+			if (mHashed >= end)
+				return;
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while (mHashed < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - mHashed));
+				int n = channel.read(buffer, mHashed);
+				if (n <= 0)
+					throw new IOException("staging file shorter than expected at " + mHashed);
+				mDigest.update(buffer.array(), 0, n);
+				mHashed += n;
+				if (listener != null)
+					listener.onVerifyProgress(mExpectedSize, mHashed);
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public void finish() throws VerifyException {
+		mLock.lock();
+		try {
+			if (mHashed != mExpectedSize)
+				throw new VerifyException("hashed " + mHashed + " bytes, expected " + mExpectedSize);
+			byte[] hash = mDigest.digest();
+			if (!Arrays.equals(hash, mExpectedHash))
+				throw new VerifyException("payload SHA-256 mismatch");
+			Log.d(TAG, "payload SHA-256 verified");
+		} finally {
+			mLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Build;
+import android.util.AtomicFile;
+import android.util.Log;
+
+// Minimal HTTP/1.1 range server that hands verified payloads to other boards
+// on the same network, announced over NSD as SERVICE_TYPE. Payloads are
+// addressed by their SHA-256 ("/payload/<hex>") and only published after
+// PayloadVerifier accepted them; the peer checks the hash against the
+// origin's payload_properties.txt again, so it cannot be fed other data.
+// One instance per process, started when ota.conf sets peer_cache.
+public class PeerCacheServer {
+	static final String TAG = "OTA";
+
+	static final String SERVICE_TYPE = "_fslota._tcp";
+	static final String PATH_PREFIX = "/payload/";
+	// a verified payload is marked with "<payload>.verified" holding its hash.
+	static final String MARKER_SUFFIX = ".verified";
+	static final int MAX_CLIENTS = 4;
+	static final int SOCKET_TIMEOUT_MS = 30000;
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private static PeerCacheServer sInstance;
+
+	private final NsdManager mNsdManager;
+	// NSD may rename the service on a name clash, this is the name in use.
+	private volatile String mServiceName;
+	// published payloads, keyed by lower case hex SHA-256.
+	private final HashMap<String, File> mPayloads = new HashMap<String, File>();
+	private final ThreadPoolExecutor mClients;
+	private ServerSocket mSocket;
+	private NsdManager.RegistrationListener mRegistration;
+
+	// start the server once per process and publish payloads verified earlier.
+	static synchronized PeerCacheServer start(Context context, File stagingDir) {
+		if (sInstance == null) {
+			PeerCacheServer server = new PeerCacheServer(context);
+			try {
+				server.listen();
+			} catch (IOException e) {
+				Log.e(TAG, "cannot start OTA peer cache: " + e);
+				return null;
+			}
+			server.loadMarkers(stagingDir);
+			sInstance = server;
+		}
+		return sInstance;
+	}
+
+	private PeerCacheServer(Context context) {
+		mNsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+		// unique per board, PeerFinder skips its own board by this name.
+		mServiceName = "fslota-" + Build.PRODUCT + "-" + RolloutGate.deviceId(context);
+		mClients = new ThreadPoolExecutor(0, MAX_CLIENTS, 30, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>());
+	}
+
+	public String getServiceName() {
+		return mServiceName;
+	}
+
+	// serve payload under hash from now on; it must already be verified.
+	public void publish(File payload, String hash, long size) {
+		AtomicFile marker = new AtomicFile(new File(payload.getPath() + MARKER_SUFFIX));
+		FileOutputStream out = null;
+		try {
+			out = marker.startWrite();
+			out.write(("hash=" + hash + "\nsize=" + size + "\n").getBytes(StandardCharsets.UTF_8));
+			marker.finishWrite(out);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot mark " + payload + " as verified: " + e);
+			if (out != null)
+				marker.failWrite(out);
+		}
+		synchronized (this) {
+			mPayloads.put(hash, payload);
+		}
+		Log.d(TAG, "peer cache serves " + payload + " as " + hash);
+		register();
+	}
+
+	// hash payload is currently published under, null if it is not served.
+	public synchronized String publishedHash(File payload) {
+		for (Map.Entry<String, File> e : mPayloads.entrySet()) {
+			if (e.getValue().equals(payload))
+				return e.getKey();
+		}
+		return null;
+	}
+
+	// stop serving payload, e.g. before it is overwritten or deleted.
+	public void withdraw(File payload) {
+		boolean empty;
+		synchronized (this) {
+			String hash = publishedHash(payload);
+			if (hash != null)
+				mPayloads.remove(hash);
+			empty = mPayloads.isEmpty();
+		}
+		new File(payload.getPath() + MARKER_SUFFIX).delete();
+		if (empty)
+			unregister();
+	}
+
+	private void listen() throws IOException {
+		mSocket = new ServerSocket(0);
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					final Socket client;
+					try {
+						client = mSocket.accept();
+					} catch (IOException e) {
+						Log.e(TAG, "OTA peer cache stopped: " + e);
+						return;
+					}
+					try {
+						mClients.execute(new Runnable() {
+							public void run() {
+								serve(client);
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						closeQuietly(client);
+					}
+				}
+			}
+		}, "OTA peer cache");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Log.d(TAG, "OTA peer cache listening on port " + mSocket.getLocalPort());
+	}
+
+	private void loadMarkers(File stagingDir) {
+		File[] markers = stagingDir.listFiles();
+		if (markers == null)
+			return;
+		for (File marker : markers) {
+			String name = marker.getName();
+			if (!name.endsWith(MARKER_SUFFIX))
+				continue;
+			File payload = new File(stagingDir, name.substring(0, name.length() - MARKER_SUFFIX.length()));
+			try {
+				BuildPropParser props = new BuildPropParser(marker);
+				String hash = props.getProp("hash");
+				long size = Long.parseLong(props.getProp("size"));
+				if (hash != null && payload.length() == size) {
+					synchronized (this) {
+						mPayloads.put(hash, payload);
+					}
+				} else {
+					marker.delete();
+				}
+			} catch (IOException | RuntimeException e) {
+				Log.w(TAG, "discard peer cache marker " + marker + ": " + e);
+				marker.delete();
+			}
+		}
+		synchronized (this) {
+			if (mPayloads.isEmpty())
+				return;
+		}
+		register();
+	}
+
+	private synchronized void register() {
+		if (mRegistration != null)
+			return;
+		NsdServiceInfo info = new NsdServiceInfo();
+		info.setServiceName(mServiceName);
+		info.setServiceType(SERVICE_TYPE);
+		info.setPort(mSocket.getLocalPort());
+		mRegistration = new NsdManager.RegistrationListener() {
+			public void onServiceRegistered(NsdServiceInfo info) {
+				mServiceName = info.getServiceName();
+				Log.d(TAG, "peer cache announced as " + info.getServiceName());
+			}
+
+			public void onRegistrationFailed(NsdServiceInfo info, int error) {
+				Log.e(TAG, "peer cache announce failed: " + error);
+				synchronized (PeerCacheServer.this) {
+					mRegistration = null;
+				}
+			}
+
+			public void onServiceUnregistered(NsdServiceInfo info) {
+			}
+
+			public void onUnregistrationFailed(NsdServiceInfo info, int error) {
+			}
+		};
+		mNsdManager.registerService(info, NsdManager.PROTOCOL_DNS_SD, mRegistration);
+	}
+
+	private synchronized void unregister() {
+		if (mRegistration == null)
+			return;
+		mNsdManager.unregisterService(mRegistration);
+		mRegistration = null;
+	}
+
+	// one request per connection, the client reconnects for the next range.
+	private void serve(Socket client) {
+		try {
+			client.setSoTimeout(SOCKET_TIMEOUT_MS);
+			InputStream in = new BufferedInputStream(client.getInputStream());
+			OutputStream out = new BufferedOutputStream(client.getOutputStream());
+			String request = readLine(in);
+			if (request == null)
+				return;
+			String range = null;
+			String ifRange = null;
+			String line;
+			while ((line = readLine(in)) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon <= 0)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Range"))
+					range = value;
+				else if (name.equalsIgnoreCase("If-Range"))
+					ifRange = value;
+			}
+
+			String[] parts = request.split(" ");
+			if (parts.length < 2 || !(parts[0].equals("GET") || parts[0].equals("HEAD"))) {
+				respond(out, "405 Method Not Allowed", 0, null);
+				return;
+			}
+			boolean head = parts[0].equals("HEAD");
+			File payload = null;
+			String hash = null;
+			if (parts[1].startsWith(PATH_PREFIX)) {
+				hash = parts[1].substring(PATH_PREFIX.length());
+				synchronized (this) {
+					payload = mPayloads.get(hash);
+				}
+			}
+			if (payload == null) {
+				respond(out, "404 Not Found", 0, null);
+				return;
+			}
+
+			String etag = "\"" + hash + "\"";
+			long size = payload.length();
+			long start = 0;
+			long end = size;
+			boolean partial = false;
+			if (range != null && (ifRange == null || ifRange.equals(etag))) {
+				long[] r = parseRange(range, size);
+				if (r == null) {
+					respond(out, "416 Range Not Satisfiable", 0, "Content-Range: bytes */" + size);
+					return;
+				}
+				start = r[0];
+				end = r[1];
+				partial = true;
+			}
+			StringBuilder headers = new StringBuilder();
+			headers.append("ETag: ").append(etag).append("\r\n");
+			headers.append("Accept-Ranges: bytes");
+			if (partial)
+				headers.append("\r\nContent-Range: bytes ").append(start).append('-')
+						.append(end - 1).append('/').append(size);
+			respond(out, partial ? "206 Partial Content" : "200 OK", end - start, headers.toString());
+			if (!head)
+				copy(payload, start, end, out);
+			out.flush();
+		} catch (SocketException e) {
+			// peer went away.
+		} catch (IOException e) {
+			Log.w(TAG, "peer cache request failed: " + e);
+		} finally {
+			closeQuietly(client);
+		}
+	}
+
+	// "bytes=a-b", "bytes=a-" or "bytes=-n" as [start, end); null if not satisfiable.
+	static long[] parseRange(String range, long size) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+			return null;
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			long start;
+			long end;
+			if (dash == 0) {
+				start = Math.max(0, size - Long.parseLong(spec.substring(1)));
+				end = size;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = (dash == spec.length() - 1) ? size
+						: Math.min(size, Long.parseLong(spec.substring(dash + 1)) + 1);
+			}
+			return (start < end) ? new long[] { start, end } : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void respond(OutputStream out, String status, long length, String headers)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Content-Length: ").append(length).append("\r\n");
+		sb.append("Connection: close\r\n");
+		if (headers != null)
+			sb.append(headers).append("\r\n");
+		sb.append("\r\n");
+		out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	private static void copy(File payload, long start, long end, OutputStream out) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(payload, "r");
+		try {
+			raf.seek(start);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long pos = start;
+			while (pos < end) {
+				int n = raf.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+				if (n < 0)
+					throw new EOFException("payload shorter than expected at " + pos);
+				out.write(buffer, 0, n);
+				pos += n;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (c != '\r')
+				sb.append((char) c);
+			if (sb.length() > 8192)
+				throw new IOException("request line too long");
+		}
+		return (c == -1 && sb.length() == 0) ? null : sb.toString();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Looks for a PeerCacheServer on the local network that already holds the
+// payload with a given hash. Blocking, meant to run on the download task;
+// probes go through the caller's connections so its cancel() stops them.
+public class PeerFinder {
+	final String TAG = "OTA";
+
+	static final int PROBE_TIMEOUT_MS = 2000;
+
+	private final NsdManager mNsdManager;
+	private final OTAConnectionManager mConnections;
+	private final String mOwnServiceName;
+
+	PeerFinder(Context context, OTAConnectionManager connections, String ownServiceName) {
+		mNsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+		mConnections = connections;
+		mOwnServiceName = ownServiceName;
+	}
+
+	// URL of the payload on the first peer that has it, null if none answers
+	// within timeoutMs.
+	public URL find(String hash, long timeoutMs) throws InterruptedException {
+		final LinkedBlockingQueue<NsdServiceInfo> found = new LinkedBlockingQueue<NsdServiceInfo>();
+		NsdManager.DiscoveryListener discovery = new NsdManager.DiscoveryListener() {
+			public void onServiceFound(NsdServiceInfo info) {
+				if (!info.getServiceName().equals(mOwnServiceName))
+					found.offer(info);
+			}
+
+			public void onStartDiscoveryFailed(String type, int error) {
+				Log.w(TAG, "peer discovery failed: " + error);
+			}
+
+			public void onStopDiscoveryFailed(String type, int error) {
+			}
+
+			public void onDiscoveryStarted(String type) {
+			}
+
+			public void onDiscoveryStopped(String type) {
+			}
+
+			public void onServiceLost(NsdServiceInfo info) {
+			}
+		};
+		mNsdManager.discoverServices(PeerCacheServer.SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, discovery);
+		long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+		try {
+			long left;
+			while ((left = deadline - SystemClock.elapsedRealtime()) > 0) {
+				NsdServiceInfo info = found.poll(left, TimeUnit.MILLISECONDS);
+				if (info == null)
+					break;
+				// NsdManager resolves one service at a time, so do them in turn.
+				NsdServiceInfo resolved = resolve(info, deadline - SystemClock.elapsedRealtime());
+				if (resolved == null || resolved.getHost() == null)
+					continue;
+				URL url = probe(resolved, hash);
+				if (url != null)
+					return url;
+			}
+			return null;
+		} finally {
+			mNsdManager.stopServiceDiscovery(discovery);
+		}
+	}
+
+	private NsdServiceInfo resolve(NsdServiceInfo info, long timeoutMs) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<NsdServiceInfo> result = new AtomicReference<NsdServiceInfo>();
+		mNsdManager.resolveService(info, new NsdManager.ResolveListener() {
+			public void onServiceResolved(NsdServiceInfo info) {
+				result.set(info);
+				done.countDown();
+			}
+
+			public void onResolveFailed(NsdServiceInfo info, int error) {
+				Log.d(TAG, "cannot resolve peer " + info.getServiceName() + ": " + error);
+				done.countDown();
+			}
+		});
+		done.await(Math.max(0, timeoutMs), TimeUnit.MILLISECONDS);
+		return result.get();
+	}
+
+	private URL probe(NsdServiceInfo peer, String hash) {
+		try {
+			URL url = new URL("http", peer.getHost().getHostAddress(), peer.getPort(),
+					PeerCacheServer.PATH_PREFIX + hash);
+			// peers are on the LAN, do not wait for the WAN timeouts.
+			RemoteResourceInfo info = RemoteResourceInfo.head(mConnections, url, PROBE_TIMEOUT_MS);
+			if (info.exists()) {
+				Log.d(TAG, "peer " + peer.getServiceName() + " has the payload at " + url);
+				return url;
+			}
+		} catch (MalformedURLException e) {
+			Log.w(TAG, "bad peer address " + peer.getHost() + ": " + e);
+		} catch (IOException e) {
+			Log.d(TAG, "peer " + peer.getServiceName() + " not reachable: " + e);
+		}
+		return null;
+	}
+}
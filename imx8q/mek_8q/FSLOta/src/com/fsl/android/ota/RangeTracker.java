@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+// Persistent record of which byte ranges of a staged payload are already on disk.
+// The state lives next to the staging file so a download can resume after the
+// process dies or the board reboots.
+public class RangeTracker {
+	final String TAG = "OTA";
+
+	private final AtomicFile mStateFile;
+	private String mSource;
+	private String mValidator;
+	private long mSize = -1;
+	// sorted, non-overlapping, half open [start, end) ranges
+	private final List<long[]> mRanges = new ArrayList<long[]>();
+
+	RangeTracker(File stateFile) {
+		mStateFile = new AtomicFile(stateFile);
+		load();
+	}
+
+	// true if the saved state was recorded for the same remote object.
+	public synchronized boolean matches(String source, long size, String validator) {
+		if (mSource == null || !mSource.equals(source) || mSize != size)
+			return false;
+		if (validator != null && mValidator != null && !validator.equals(mValidator))
+			return false;
+		return true;
+	}
+
+	public synchronized void reset(String source, long size, String validator) {
+		mSource = source;
+		mSize = size;
+		mValidator = validator;
+		mRanges.clear();
+	}
+
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public synchronized void add(long start, long end) {
+		if (end <= start)
+			return;
+		int i = 0;
+		while (i < mRanges.size() && mRanges.get(i)[1] < start)
+			i++;
+		while (i < mRanges.size() && mRanges.get(i)[0] <= end) {
+			long[] r = mRanges.remove(i);
+			start = Math.min(start, r[0]);
+			end = Math.max(end, r[1]);
+		}
+		mRanges.add(i, new long[] { start, end });
+	}
+
+	public synchronized long completedBytes() {
+		long total = 0;
+		for (long[] r : mRanges)
+			total += r[1] - r[0];
+		return total;
+	}
+
+	// end of the range that starts at byte 0, i.e. how far the file can be read
+	// without hitting a hole.
+	public synchronized long contiguousEnd() {
+		if (mRanges.isEmpty() || mRanges.get(0)[0] != 0)
+			return 0;
+		return mRanges.get(0)[1];
+	}
+
+	public synchronized boolean isComplete() {
+		return mSize >= 0 && mRanges.size() == 1
+				&& mRanges.get(0)[0] == 0 && mRanges.get(0)[1] == mSize;
+	}
+
+	// ranges still to be fetched, as [start, end) pairs.
+	public synchronized List<long[]> missing() {
+		List<long[]> result = new ArrayList<long[]>();
+		long pos = 0;
+		for (long[] r : mRanges) {
+			if (r[0] > pos)
+				result.add(new long[] { pos, r[0] });
+			pos = r[1];
+		}
+		if (pos < mSize)
+			result.add(new long[] { pos, mSize });
+		return result;
+	}
+
+	public synchronized void save() {
+		FileOutputStream out = null;
+		try {
+			out = mStateFile.startWrite();
+			StringBuilder sb = new StringBuilder();
+			sb.append("source=").append(mSource).append('\n');
+			sb.append("size=").append(mSize).append('\n');
+			if (mValidator != null)
+				sb.append("validator=").append(mValidator).append('\n');
+			for (long[] r : mRanges)
+				sb.append("range=").append(r[0]).append('-').append(r[1]).append('\n');
+			out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+			mStateFile.finishWrite(out);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot save download state: " + e);
+			if (out != null)
+				mStateFile.failWrite(out);
+		}
+	}
+
+	public synchronized void delete() {
+		mStateFile.delete();
+		mSource = null;
+		mValidator = null;
+		mSize = -1;
+		mRanges.clear();
+	}
+
+	private void load() {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(mStateFile.openRead(),
+					StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				int eq = line.indexOf('=');
+				if (eq <= 0)
+					continue;
+				String key = line.substring(0, eq);
+				String value = line.substring(eq + 1);
+				if (key.equals("source")) {
+					mSource = value;
+				} else if (key.equals("size")) {
+					mSize = Long.parseLong(value);
+				} else if (key.equals("validator")) {
+					mValidator = value;
+				} else if (key.equals("range")) {
+					int dash = value.indexOf('-');
+					add(Long.parseLong(value.substring(0, dash)),
+							Long.parseLong(value.substring(dash + 1)));
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// nothing saved yet.
+		} catch (IOException | RuntimeException e) {
+			Log.w(TAG, "discard broken download state: " + e);
+			mSource = null;
+			mSize = -1;
+			mRanges.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
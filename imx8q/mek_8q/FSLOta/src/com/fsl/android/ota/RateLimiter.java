@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Token bucket shared by all connections of a payload download. The rate
+// depends on whether somebody is watching the UI (foreground) or not, on
+// time-of-day windows from ota.conf, and can be overridden at runtime.
+// A rate of 0 means unlimited.
+public class RateLimiter {
+	final String TAG = "OTA";
+
+	// the bucket holds at most this many seconds worth of tokens.
+	static final double BURST_SECONDS = 0.5;
+	// re-evaluate the time-of-day windows this often.
+	static final long POLICY_REFRESH_MS = 60 * 1000;
+
+	// [start, end) minutes of the day, may wrap over midnight.
+	static class Window {
+		final int startMinute;
+		final int endMinute;
+		final long bytesPerSecond;
+
+		Window(int startMinute, int endMinute, long bytesPerSecond) {
+			this.startMinute = startMinute;
+			this.endMinute = endMinute;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		boolean contains(int minute) {
+			if (startMinute <= endMinute)
+				return minute >= startMinute && minute < endMinute;
+			return minute >= startMinute || minute < endMinute;
+		}
+	}
+
+	private final long mForegroundRate;
+	private final long mBackgroundRate;
+	private final List<Window> mWindows;
+	private volatile boolean mForeground = false;
+	private volatile long mOverride = -1;
+
+	private long mRate;
+	private double mTokens;
+	private long mLastRefill;
+	private long mLastPolicy = -POLICY_REFRESH_MS;
+
+	RateLimiter(long foregroundRate, long backgroundRate, List<Window> windows) {
+		mForegroundRate = foregroundRate;
+		mBackgroundRate = backgroundRate;
+		mWindows = windows;
+	}
+
+	// parse "HH:MM-HH:MM=KB/s" entries separated by ','.
+	static List<Window> parseWindows(String spec) {
+		List<Window> windows = new ArrayList<Window>();
+		if (spec == null)
+			return windows;
+		for (String item : spec.split(",")) {
+			item = item.trim();
+			if (item.isEmpty())
+				continue;
+			int eq = item.indexOf('=');
+			int dash = item.indexOf('-');
+			if (eq < 0 || dash < 0 || dash > eq)
+				throw new NumberFormatException("bad rate window " + item);
+			windows.add(new Window(parseMinute(item.substring(0, dash)),
+					parseMinute(item.substring(dash + 1, eq)),
+					Long.parseLong(item.substring(eq + 1).trim()) * 1024));
+		}
+		return windows;
+	}
+
+	static int parseMinute(String hhmm) {
+		String[] parts = hhmm.trim().split(":");
+		int minute = Integer.parseInt(parts[0]) * 60;
+		if (parts.length > 1)
+			minute += Integer.parseInt(parts[1]);
+		return minute;
+	}
+
+	public void setForeground(boolean foreground) {
+		mForeground = foreground;
+		invalidate();
+	}
+
+	// runtime cap in bytes per second, 0 for unlimited, -1 to go back to ota.conf.
+	public void setOverride(long bytesPerSecond) {
+		mOverride = bytesPerSecond;
+		invalidate();
+	}
+
+	private synchronized void invalidate() {
+		mLastPolicy = -POLICY_REFRESH_MS;
+	}
+
+	// the rate in effect right now, in bytes per second.
+	public long currentRate() {
+		if (mOverride >= 0)
+			return mOverride;
+		long rate = mForeground ? mForegroundRate : mBackgroundRate;
+		Calendar now = Calendar.getInstance();
+		int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+		for (Window w : mWindows) {
+			if (w.contains(minute) && w.bytesPerSecond > 0)
+				rate = (rate > 0) ? Math.min(rate, w.bytesPerSecond) : w.bytesPerSecond;
+		}
+		return rate;
+	}
+
+	// block until bytes may be sent.
+	public void acquire(int bytes) throws InterruptedIOException {
+		while (true) {
+			long wait;
+			synchronized (this) {
+				long now = SystemClock.elapsedRealtime();
+				if (now - mLastPolicy >= POLICY_REFRESH_MS) {
+					long rate = currentRate();
+					if (rate != mRate)
+						Log.d(TAG, "download rate limit " + (rate == 0 ? "off" : (rate / 1024) + " KB/s"));
+					mRate = rate;
+					mLastPolicy = now;
+				}
+				if (mRate <= 0)
+					return;
+				double burst = Math.max(mRate * BURST_SECONDS, bytes);
+				mTokens = Math.min(burst, mTokens + (now - mLastRefill) * mRate / 1000.0);
+				mLastRefill = now;
+				if (mTokens >= bytes) {
+					mTokens -= bytes;
+					return;
+				}
+				wait = (long) Math.ceil((bytes - mTokens) * 1000.0 / mRate);
+			}
+			try {
+				Thread.sleep(Math.max(1, wait));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("download cancelled");
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fsl.android.ota;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+// What one response told us about a remote file: whether it exists, its size
+// and the validator used to detect that it changed.
+public class RemoteResourceInfo {
+	public final URL url;
+	public final int code;
+	public final long size;
+	public final String validator;
+	public final boolean acceptRanges;
+
+	RemoteResourceInfo(URL url, HttpURLConnection con) throws IOException {
+		this.url = url;
+		code = con.getResponseCode();
+		size = con.getContentLengthLong();
+		String etag = con.getHeaderField("ETag");
+		validator = (etag != null) ? etag : con.getHeaderField("Last-Modified");
+		acceptRanges = "bytes".equalsIgnoreCase(con.getHeaderField("Accept-Ranges"));
+	}
+
+	// a file on local storage, answered with the HTTP code a server would use.
+	RemoteResourceInfo(URL url, File file) {
+		this.url = url;
+		code = file.isFile() ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_NOT_FOUND;
+		size = file.isFile() ? file.length() : -1;
+		validator = file.isFile() ? Long.toString(file.lastModified()) : null;
+		acceptRanges = true;
+	}
+
+	public boolean exists() {
+		return code == HttpURLConnection.HTTP_OK;
+	}
+
+	static RemoteResourceInfo head(OTAConnectionManager connections, URL url) throws IOException {
+		return head(connections, url, 0);
+	}
+
+	// same with its own connect and read timeout, 0 keeps the manager's.
+	static RemoteResourceInfo head(OTAConnectionManager connections, URL url, int timeoutMs)
+			throws IOException {
+		HttpURLConnection con = connections.open(url, "HEAD");
+		if (timeoutMs > 0) {
+			con.setConnectTimeout(timeoutMs);
+			con.setReadTimeout(timeoutMs);
+		}
+		try {
+			return new RemoteResourceInfo(url, con);
+		} finally {
+			connections.release(con);
+		}
+	}
+}
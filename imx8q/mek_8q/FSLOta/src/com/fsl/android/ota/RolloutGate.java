@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.os.Build;
+import android.provider.Settings;
+import android.util.Log;
+
+// Staged rollout decided on the device, the OTA server only serves static
+// files. A release carries its rollout in build.prop or in rollout.prop next
+// to it (which wins):
+//   ota.rollout.start.utc=<seconds>    nobody gets it before this time
+//   ota.rollout.percentage=<0..100>    share of devices admitted
+//   ota.rollout.ramp.hours=<hours>     grow from 0 to the percentage over this time
+//   ota.rollout.cohorts=<a,b,...>      devices in these cohorts get it right away
+// Every device hashes its ID together with the release into a fixed bucket,
+// so the same devices stay admitted while the percentage grows and the first
+// devices differ from release to release.
+public class RolloutGate {
+	static final String TAG = "OTA";
+
+	static final String START_UTC = "ota.rollout.start.utc";
+	static final String PERCENTAGE = "ota.rollout.percentage";
+	static final String RAMP_HOURS = "ota.rollout.ramp.hours";
+	static final String COHORTS = "ota.rollout.cohorts";
+
+	// buckets per percent, percentages like 0.5 still work.
+	static final int BUCKETS = 100 * 100;
+
+	private final String mDeviceId;
+	private final String mCohort;
+
+	RolloutGate(String deviceId, String cohort) {
+		mDeviceId = deviceId;
+		mCohort = cohort;
+	}
+
+	// cohort is the one from ota.conf, null for none.
+	static RolloutGate forDevice(Context context, String cohort) {
+		return new RolloutGate(deviceId(context), cohort);
+	}
+
+	// stable per board: ANDROID_ID, the serial number if there is none.
+	static String deviceId(Context context) {
+		String id = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
+		if (id == null || id.isEmpty())
+			id = Build.SERIAL;
+		return id;
+	}
+
+	// true if the release described by props is offered to this device at
+	// nowMs. Releases without rollout keys are offered to everyone.
+	public boolean admits(BuildPropParser props, BuildPropParser sidecar, long nowMs) {
+		String cohorts = get(props, sidecar, COHORTS);
+		if (mCohort != null && cohorts != null
+				&& Arrays.asList(cohorts.replace(" ", "").split(",")).contains(mCohort)) {
+			Log.d(TAG, "device is in rollout cohort " + mCohort);
+			return true;
+		}
+		long start = VersionComparator.parseLong(get(props, sidecar, START_UTC));
+		long now = nowMs / 1000;
+		if (start > 0 && now < start) {
+			Log.d(TAG, "rollout starts in " + (start - now) + " s");
+			return false;
+		}
+		String value = get(props, sidecar, PERCENTAGE);
+		if (value == null)
+			return true;
+		double percentage;
+		try {
+			percentage = Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "wrong " + PERCENTAGE + ": " + value + ", hold the release back");
+			return false;
+		}
+		long ramp = VersionComparator.parseLong(get(props, sidecar, RAMP_HOURS)) * 3600;
+		if (start > 0 && ramp > 0 && now - start < ramp)
+			percentage = percentage * (now - start) / ramp;
+		int bucket = bucket(props.getProp("ro.build.fingerprint"));
+		boolean admitted = bucket < percentage * (BUCKETS / 100);
+		Log.d(TAG, "rollout at " + percentage + "%, device bucket " + bucket + "/" + BUCKETS
+				+ (admitted ? ", admitted" : ", not yet"));
+		return admitted;
+	}
+
+	// 0..BUCKETS-1, stable for this device and release.
+	int bucket(String release) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] d = md.digest((release + ":" + mDeviceId).getBytes(StandardCharsets.UTF_8));
+			long v = 0;
+			for (int i = 0; i < 8; i++)
+				v = (v << 8) | (d[i] & 0xff);
+			return (int) ((v >>> 1) % BUCKETS);
+		} catch (NoSuchAlgorithmException e) {
+			return Math.abs((release + ":" + mDeviceId).hashCode() % BUCKETS);
+		}
+	}
+
+	private static String get(BuildPropParser props, BuildPropParser sidecar, String key) {
+		String value = (sidecar != null) ? sidecar.getProp(key) : null;
+		return (value != null) ? value : props.getProp(key);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+// Decides where a payload of known size is staged and reserves its blocks up
+// front, so a full partition is reported before the download starts instead
+// of as a write error somewhere inside it.
+public class StagingPlanner {
+	static final String TAG = "OTA";
+
+	// kept free on the partition after the payload is reserved.
+	static final long RESERVE_BYTES = 32L * 1024 * 1024;
+
+	public static class InsufficientSpaceException extends IOException {
+		public final long needed;
+		public final long available;
+
+		InsufficientSpaceException(long needed, long available) {
+			super("not enough space to stage the payload: need " + needed
+					+ " bytes, " + available + " available");
+			this.needed = needed;
+			this.available = available;
+		}
+	}
+
+	private final List<File> mCandidates;
+
+	// candidate directories, most preferred first.
+	StagingPlanner(List<File> candidates) {
+		mCandidates = candidates;
+	}
+
+	// staging file for a payload of size bytes. A directory that already holds
+	// a reserved copy wins so a download resumes where it was, otherwise the
+	// first directory with room.
+	public File plan(String fileName, long size) throws InsufficientSpaceException {
+		for (File dir : mCandidates) {
+			File target = new File(dir, fileName);
+			if (target.isFile() && target.length() == size)
+				return target;
+		}
+		long best = 0;
+		for (File dir : mCandidates) {
+			File target = new File(dir, fileName);
+			long available = available(dir, target);
+			Log.d(TAG, dir + ": " + available + " bytes available for " + size + " byte payload");
+			if (available >= size + RESERVE_BYTES)
+				return target;
+			best = Math.max(best, available);
+		}
+		throw new InsufficientSpaceException(size + RESERVE_BYTES, best);
+	}
+
+	// staging file when the size is not known yet: a copy to resume, otherwise
+	// the directory with the most room. Preallocation is not possible, so a
+	// full partition shows up as a write error during the download.
+	public File planUnknownSize(String fileName) {
+		for (File dir : mCandidates) {
+			File target = new File(dir, fileName);
+			if (target.isFile())
+				return target;
+		}
+		File best = null;
+		long bestAvailable = -1;
+		for (File dir : mCandidates) {
+			File target = new File(dir, fileName);
+			long available = available(dir, target);
+			if (available > bestAvailable) {
+				best = target;
+				bestAvailable = available;
+			}
+		}
+		return best;
+	}
+
+	// free bytes in dir, counting the space an old copy of target gives back.
+	static long available(File dir, File target) {
+		try {
+			long free = new StatFs(dir.getPath()).getAvailableBytes();
+			if (target.isFile())
+				free += target.length();
+			return free;
+		} catch (IllegalArgumentException e) {
+			// StatFs fails for a directory that does not exist.
+			return 0;
+		}
+	}
+
+	// give raf its final size with every block allocated. fallocate lets the
+	// filesystem lay the file out in few extents and fails now with ENOSPC;
+	// a plain setLength() only creates a sparse file. target is the file raf
+	// writes, its partition is what a shortfall is reported for.
+	static void preallocate(RandomAccessFile raf, File target, long size) throws IOException {
+		try {
+			Os.posix_fallocate(raf.getFD(), 0, size);
+		} catch (ErrnoException e) {
+			if (e.errno == OsConstants.ENOSPC)
+				throw new InsufficientSpaceException(size,
+						available(target.getAbsoluteFile().getParentFile(), target));
+			if (e.errno != OsConstants.EOPNOTSUPP && e.errno != OsConstants.ENOSYS)
+				throw new IOException("fallocate failed", e);
+			Log.d(TAG, "fallocate not supported, staging file stays sparse");
+		}
+		raf.setLength(size);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fsl.android.ota;
+
+import android.os.Build;
+import android.util.Log;
+
+// Decides whether the build.prop published on the server is an update for
+// this device. The fingerprint says whether it is the same build at all; build
+// time, incremental and security patch level order two different builds; the
+// server can limit a release to one channel or to devices on a minimum build.
+public class VersionComparator {
+	static final String TAG = "OTA";
+
+	// optional keys in the server build.prop.
+	static final String CHANNEL = "ota.channel";
+	static final String MIN_BUILD_DATE_UTC = "ota.min.build.date.utc";
+
+	public enum Result {
+		UP_TO_DATE, // server carries the build the device runs
+		NEWER, // server build is an update
+		OLDER, // server build is older, a downgrade is never offered
+		WRONG_CHANNEL, // release is for another channel
+		BELOW_MINIMUM, // device must first update to an intermediate build
+		NOT_IN_ROLLOUT, // newer, but the staged rollout has not reached this device, see RolloutGate
+	}
+
+	private final String mFingerprint;
+	private final String mIncremental;
+	private final String mSecurityPatch;
+	// seconds, like ro.build.date.utc.
+	private final long mBuildDateUtc;
+	private final String mChannel;
+
+	VersionComparator(String fingerprint, String incremental, String securityPatch,
+			long buildDateUtc, String channel) {
+		mFingerprint = fingerprint;
+		mIncremental = incremental;
+		mSecurityPatch = securityPatch;
+		mBuildDateUtc = buildDateUtc;
+		mChannel = channel;
+	}
+
+	// the running build; channel is the one from ota.conf, null for none.
+	static VersionComparator forDevice(String channel) {
+		return new VersionComparator(Build.FINGERPRINT, Build.VERSION.INCREMENTAL,
+				Build.VERSION.SECURITY_PATCH, Build.TIME / 1000, channel);
+	}
+
+	public Result compare(BuildPropParser remote) {
+		String fingerprint = remote.getProp("ro.build.fingerprint");
+		if (fingerprint != null && fingerprint.equals(mFingerprint))
+			return Result.UP_TO_DATE;
+
+		String channel = remote.getProp(CHANNEL);
+		if (channel != null && !channel.trim().isEmpty()
+				&& !channel.trim().equals(mChannel)) {
+			Log.d(TAG, "release is for channel " + channel + ", device is on " + mChannel);
+			return Result.WRONG_CHANNEL;
+		}
+		long minimum = parseLong(remote.getProp(MIN_BUILD_DATE_UTC));
+		if (minimum > 0 && mBuildDateUtc > 0 && mBuildDateUtc < minimum) {
+			Log.d(TAG, "release needs a build from " + minimum + " or later, device has " + mBuildDateUtc);
+			return Result.BELOW_MINIMUM;
+		}
+
+		// a lower patch level would be refused by update_engine anyway.
+		String patch = remote.getProp("ro.build.version.security_patch");
+		if (patch != null && !isEmpty(mSecurityPatch) && patch.compareTo(mSecurityPatch) < 0)
+			return Result.OLDER;
+
+		long date = parseLong(remote.getProp("ro.build.date.utc"));
+		int order = (date > 0 && mBuildDateUtc > 0) ? Long.compare(date, mBuildDateUtc) : 0;
+		if (order == 0)
+			order = compareIncremental(remote.getProp("ro.build.version.incremental"), mIncremental);
+		if (order == 0 && patch != null && !isEmpty(mSecurityPatch))
+			order = patch.compareTo(mSecurityPatch);
+		if (order < 0)
+			return Result.OLDER;
+		if (order == 0 && fingerprint == null)
+			return Result.UP_TO_DATE;
+		// a different build the server publishes and nothing says it is older.
+		return Result.NEWER;
+	}
+
+	// orders incrementals by their numeric parts, "eng.20180102.1" after
+	// "eng.20180101.7". 0 if either is missing or they have no numbers.
+	static int compareIncremental(String a, String b) {
+		if (a == null || b == null)
+			return 0;
+		if (a.equals(b))
+			return 0;
+		String[] pa = a.split("\\D+");
+		String[] pb = b.split("\\D+");
+		int n = Math.min(pa.length, pb.length);
+		for (int i = 0; i < n; i++) {
+			if (pa[i].isEmpty() || pb[i].isEmpty())
+				continue;
+			int order;
+			try {
+				order = Long.compare(Long.parseLong(pa[i]), Long.parseLong(pb[i]));
+			} catch (NumberFormatException e) {
+				// longer than a long, compare as digit strings.
+				order = Integer.compare(pa[i].length(), pb[i].length());
+				if (order == 0)
+					order = pa[i].compareTo(pb[i]);
+			}
+			if (order != 0)
+				return order;
+		}
+		return Integer.compare(pa.length, pb.length);
+	}
+
+	// -1 for a missing or malformed value.
+	static long parseLong(String value) {
+		if (value == null)
+			return -1;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static boolean isEmpty(String s) {
+		return s == null || s.isEmpty();
+	}
+}